@@ -16,12 +16,15 @@ import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 
 public final class Utils {
 
@@ -144,6 +147,71 @@ public final class Utils {
     }
 
 
+    /**
+     * Assign the case to one of <code>shardCount</code> shards by a hash of its name, which is the same on every
+     * machine and in every run.
+     *
+     * @param caseName   name of the case, e.g. file name of the phenopacket
+     * @param shardIndex index of the shard run by this process, from <code>0</code> to <code>shardCount - 1</code>
+     * @param shardCount number of the shards
+     * @return <code>true</code> if the case belongs to the shard
+     */
+    public static boolean isInShard(String caseName, int shardIndex, int shardCount) {
+        CRC32 crc = new CRC32();
+        crc.update(caseName.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue() % shardCount == shardIndex;
+    }
+
+    /**
+     * Remove the cases which do not belong to the shard, see {@link #isInShard(String, int, int)}, and log the size of
+     * the shard. The cases are left untouched if there is a single shard.
+     *
+     * @param cases      cases of all the shards, e.g. phenopacket files
+     * @param caseName   name of the case used to assign it to a shard, e.g. file name of the phenopacket
+     * @param shardIndex index of the shard run by this process
+     * @param shardCount number of the shards
+     * @param <T>        type of the case
+     */
+    public static <T> void retainShard(List<T> cases, Function<? super T, String> caseName, int shardIndex, int shardCount) {
+        if (shardCount < 2) {
+            return;
+        }
+        int total = cases.size();
+        cases.removeIf(c -> !isInShard(caseName.apply(c), shardIndex, shardCount));
+        LOGGER.info("Running shard {} of {}: {} out of {} phenopackets", shardIndex, shardCount, cases.size(), total);
+    }
+
+
+    /**
+     * Parse the values of the <code>--shard-index</code> and <code>--shard-count</code> options, see
+     * {@link #isInShard(String, int, int)}.
+     *
+     * @param shardIndexValues values of <code>--shard-index</code>, <code>null</code> if the option is missing
+     * @param shardCountValues values of <code>--shard-count</code>, <code>null</code> if the option is missing
+     * @return shard index and shard count, <code>{0, 1}</code> if neither option is present
+     * @throws IllegalArgumentException if only one option is present or the values are invalid
+     */
+    public static int[] parseShardOptions(List<String> shardIndexValues, List<String> shardCountValues) {
+        if (shardIndexValues == null && shardCountValues == null) {
+            return new int[]{0, 1};
+        }
+        if (shardIndexValues == null || shardIndexValues.isEmpty() || shardCountValues == null || shardCountValues.isEmpty()) {
+            throw new IllegalArgumentException("'--shard-index' and '--shard-count' must be used together");
+        }
+        int shardIndex, shardCount;
+        try {
+            shardIndex = Integer.parseInt(shardIndexValues.get(0));
+            shardCount = Integer.parseInt(shardCountValues.get(0));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid '--shard-index' or '--shard-count' argument: " + e.getMessage());
+        }
+        if (shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("'--shard-index' must be between 0 and '--shard-count' - 1");
+        }
+        return new int[]{shardIndex, shardCount};
+    }
+
+
     public static String getSplicingPathomechanism(List<Variant> variants) {
         if (variants.isEmpty()) {
             return "None";
@@ -0,0 +1,130 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.commands;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the analyses of the cases within a wall-clock budget, see `--case-timeout`.
+ * <p>
+ * The analysis of a case runs in a thread of the budget while the caller waits for it. An analysis exceeding the
+ * budget is cancelled and the caller gets {@link TimeoutException} right away, so that it can release the resources
+ * of the case, e.g. the simulated VCF file. Exomiser does not check for interruption, hence the cancelled analysis may
+ * go on in the background until it finishes. Its thread is not reused meanwhile, the pool starts a new thread for the
+ * next analysis instead of waiting for the abandoned one.
+ * </p>
+ */
+final class AnalysisBudget implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AnalysisBudget.class);
+
+    /**
+     * States of an analysis run within the budget.
+     */
+    private static final int RUNNING = 0, FINISHED = 1, ABANDONED = 2;
+
+    private final long budgetSeconds;
+
+    private final ExecutorService executor;
+
+    /**
+     * Number of the abandoned analyses which are still running.
+     */
+    private final AtomicInteger abandonedAnalyses = new AtomicInteger();
+
+    private final AtomicInteger timedOutAnalyses = new AtomicInteger();
+
+    /**
+     * @param budgetSeconds wall-clock budget for an analysis in seconds
+     */
+    AnalysisBudget(long budgetSeconds) {
+        if (budgetSeconds <= 0) {
+            throw new IllegalArgumentException("Budget must be positive, got " + budgetSeconds);
+        }
+        this.budgetSeconds = budgetSeconds;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            // abandoned analyses must not keep the JVM running
+            Thread thread = new Thread(runnable, "analysis-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Run the analysis and wait for its result at most for the budget.
+     *
+     * @param analysis analysis of a case
+     * @param <T>      type of the result
+     * @return result of the analysis
+     * @throws TimeoutException if the analysis exceeded the budget, it is cancelled and abandoned
+     * @throws Exception        thrown by the analysis
+     */
+    <T> T run(Callable<T> analysis) throws Exception {
+        // RUNNING -> FINISHED or RUNNING -> ABANDONED, whichever comes first
+        AtomicInteger state = new AtomicInteger(RUNNING);
+        Future<T> future = executor.submit(() -> {
+            try {
+                return analysis.call();
+            } finally {
+                if (!state.compareAndSet(RUNNING, FINISHED)) {
+                    LOGGER.info("Abandoned analysis finished, {} are still running", abandonedAnalyses.decrementAndGet());
+                }
+            }
+        });
+        try {
+            return future.get(budgetSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            // counted before the analysis can finish and decrement the count
+            int abandoned = abandonedAnalyses.incrementAndGet();
+            if (!state.compareAndSet(RUNNING, ABANDONED)) {
+                // finished in the meantime
+                abandonedAnalyses.decrementAndGet();
+                return getResult(future);
+            }
+            future.cancel(true);
+            timedOutAnalyses.incrementAndGet();
+            LOGGER.warn("Analysis exceeded the {}s budget and was cancelled, {} abandoned analyses are still running",
+                    budgetSeconds, abandoned);
+            throw e;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private static <T> T getResult(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * @return number of the analyses which exceeded the budget
+     */
+    int getTimedOutCount() {
+        return timedOutAnalyses.get();
+    }
+
+    /**
+     * @return number of the abandoned analyses which are still running
+     */
+    int getAbandonedCount() {
+        return abandonedAnalyses.get();
+    }
+
+    /**
+     * Interrupt the running analyses, the threads of the analyses ignoring the interruption are stopped on exit.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        if (abandonedAnalyses.get() > 0) {
+            LOGGER.warn("{} abandoned analyses are still running, they are stopped on exit", abandonedAnalyses.get());
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.commands;
+
+import org.monarchinitiative.exomiser.core.model.frequency.FrequencySource;
+import org.monarchinitiative.exomiser.core.model.pathogenicity.PathogenicitySource;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Named Exomiser configuration of an analysis matrix. All the configurations of the matrix are run for each simulated
+ * case, the results are written with the name of the configuration and the rank of the causal gene is reported in
+ * the configuration's column of the ranks file.
+ * <p>
+ * The matrix is read from a properties file:
+ * <pre>
+ * configurations=YES,NO
+ * YES.column=WITH_SPLICING
+ * YES.pathogenicity-sources=REVEL,MVP,SPLICING
+ * YES.frequency-sources=ALL
+ * NO.column=WITHOUT_SPLICING
+ * NO.pathogenicity-sources=REVEL,MVP
+ * </pre>
+ * The column defaults to the name of the configuration. The frequency sources are names of {@link FrequencySource}
+ * constants or <code>ALL</code> for all the external sources, the default frequency sources are used if missing.
+ * <p>
+ * Each configuration is a separate Exomiser analysis, the VCF is read and annotated again for each of them.
+ */
+final class AnalysisConfiguration {
+
+    private final String name;
+
+    private final String column;
+
+    private final Set<PathogenicitySource> pathogenicitySources;
+
+    private final Set<FrequencySource> frequencySources;
+
+    AnalysisConfiguration(String name, String column, Set<PathogenicitySource> pathogenicitySources,
+                          Set<FrequencySource> frequencySources) {
+        this.name = name;
+        this.column = column;
+        this.pathogenicitySources = Collections.unmodifiableSet(EnumSet.copyOf(pathogenicitySources));
+        this.frequencySources = Collections.unmodifiableSet(EnumSet.copyOf(frequencySources));
+    }
+
+    /**
+     * @param matrixPath               properties file with the configurations
+     * @param defaultFrequencySources  frequency sources of the configurations without <code>frequency-sources</code>
+     * @return configurations in the order of the <code>configurations</code> property
+     * @throws IllegalArgumentException if the file does not describe a valid matrix
+     */
+    static List<AnalysisConfiguration> readMatrix(Path matrixPath, Set<FrequencySource> defaultFrequencySources) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(matrixPath, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+
+        List<String> names = split(properties.getProperty("configurations", ""));
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("No 'configurations' listed in '" + matrixPath + "'");
+        }
+        Set<String> columns = new HashSet<>();
+        List<AnalysisConfiguration> configurations = new ArrayList<>(names.size());
+        for (String name : names) {
+            String column = properties.getProperty(name + ".column", name).trim();
+            if (!columns.add(column)) {
+                throw new IllegalArgumentException("Duplicate configuration or column '" + column + "' in '" + matrixPath + "'");
+            }
+
+            List<String> pathogenicityNames = split(properties.getProperty(name + ".pathogenicity-sources", ""));
+            if (pathogenicityNames.isEmpty()) {
+                throw new IllegalArgumentException("Missing '" + name + ".pathogenicity-sources' in '" + matrixPath + "'");
+            }
+            Set<PathogenicitySource> pathogenicitySources = EnumSet.noneOf(PathogenicitySource.class);
+            for (String source : pathogenicityNames) {
+                pathogenicitySources.add(PathogenicitySource.valueOf(source));
+            }
+
+            Set<FrequencySource> frequencySources;
+            List<String> frequencyNames = split(properties.getProperty(name + ".frequency-sources", ""));
+            if (frequencyNames.isEmpty()) {
+                frequencySources = defaultFrequencySources;
+            } else if (frequencyNames.equals(Collections.singletonList("ALL"))) {
+                frequencySources = FrequencySource.ALL_EXTERNAL_FREQ_SOURCES;
+            } else {
+                frequencySources = EnumSet.noneOf(FrequencySource.class);
+                for (String source : frequencyNames) {
+                    frequencySources.add(FrequencySource.valueOf(source));
+                }
+            }
+            configurations.add(new AnalysisConfiguration(name, column, pathogenicitySources, frequencySources));
+        }
+        return configurations;
+    }
+
+    private static List<String> split(String value) {
+        List<String> tokens = new ArrayList<>();
+        for (String token : value.split(",")) {
+            if (!token.trim().isEmpty()) {
+                tokens.add(token.trim());
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * @return name of the configuration, used as suffix of the output prefix
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return header of the ranks file column
+     */
+    String getColumn() {
+        return column;
+    }
+
+    Set<PathogenicitySource> getPathogenicitySources() {
+        return pathogenicitySources;
+    }
+
+    Set<FrequencySource> getFrequencySources() {
+        return frequencySources;
+    }
+
+    @Override
+    public String toString() {
+        return "AnalysisConfiguration{" +
+                "name='" + name + '\'' +
+                ", column='" + column + '\'' +
+                ", pathogenicitySources=" + pathogenicitySources +
+                ", frequencySources=" + frequencySources.size() +
+                '}';
+    }
+}
@@ -0,0 +1,148 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.commands;
+
+import org.monarchinitiative.exomiser.simulations.plain_threes.Utils;
+import org.phenopackets.schema.v1.Phenopacket;
+
+import java.util.*;
+
+/**
+ * Estimates the cost of analysing the cases, so that the most expensive cases are started first and do not leave the
+ * analysis threads idle at the end of the run.
+ * <p>
+ * A case analysed by a previous run costs as much as it did then, the analysis times are read from the journal of the
+ * previous run. The other cases are estimated from the phenopacket: the HiPhive prioritiser gets slower with each HPO
+ * term and each injected variant adds to the genes which are prioritised. The feature costs are in units of a case
+ * without HPO terms and variants, they are converted to milliseconds by the cases with known times, if there are any.
+ */
+final class CaseCostModel {
+
+    /**
+     * Relative cost of an HPO term of the case.
+     */
+    private static final double HPO_TERM_COST = 0.25;
+
+    /**
+     * Relative cost of an injected variant of the case.
+     */
+    private static final double VARIANT_COST = 0.5;
+
+    /**
+     * Analysis times in milliseconds by the case name.
+     */
+    private final Map<String, Long> timings;
+
+    CaseCostModel(Map<String, Long> timings) {
+        this.timings = timings;
+    }
+
+    static double featureCost(Phenopacket phenopacket) {
+        return 1 + HPO_TERM_COST * Utils.getPresentPhenotypesAsHpoStrings(phenopacket).size()
+                + VARIANT_COST * phenopacket.getVariantsCount();
+    }
+
+    /**
+     * Order of the longest-first schedule, the cases with the same cost keep their order.
+     *
+     * @return indices of the costs, the most expensive first
+     */
+    static int[] longestFirstOrder(double[] costs) {
+        Integer[] order = new Integer[costs.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(costs[b], costs[a]));
+        return Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Makespan of the longest-first schedule: each case, the most expensive first, is given to the least loaded worker.
+     *
+     * @return time the last worker finishes, in the units of the costs
+     */
+    static double predictMakespan(double[] costs, int workers) {
+        PriorityQueue<Double> loads = new PriorityQueue<>();
+        for (int i = 0; i < workers; i++) {
+            loads.add(0.);
+        }
+        for (int i : longestFirstOrder(costs)) {
+            loads.add(loads.poll() + costs[i]);
+        }
+        double makespan = 0;
+        for (Double load : loads) {
+            makespan = Math.max(makespan, load);
+        }
+        return makespan;
+    }
+
+    /**
+     * @param caseNames    names of the cases, i.e. the file names of the phenopackets
+     * @param phenopackets parsed phenopackets of the cases in the same order, <code>null</code> if the phenopacket
+     *                     cannot be read
+     * @return estimates in the order of the cases
+     */
+    Estimates estimate(List<String> caseNames, List<Phenopacket> phenopackets) {
+        double[] featureCosts = new double[caseNames.size()];
+        double timedFeatureCost = 0, timedMillis = 0;
+        for (int i = 0; i < caseNames.size(); i++) {
+            // the case with unreadable phenopacket fails in the pipeline and is reported there
+            featureCosts[i] = phenopackets.get(i) == null ? 1 : featureCost(phenopackets.get(i));
+            Long millis = timings.get(caseNames.get(i));
+            if (millis != null) {
+                timedFeatureCost += featureCosts[i];
+                timedMillis += millis;
+            }
+        }
+
+        // feature costs are converted to milliseconds only if there is a case with known time
+        boolean calibrated = timedFeatureCost > 0;
+        double millisPerUnit = calibrated ? timedMillis / timedFeatureCost : 1;
+        double[] costs = new double[featureCosts.length];
+        int timed = 0;
+        for (int i = 0; i < costs.length; i++) {
+            Long millis = timings.get(caseNames.get(i));
+            if (millis != null) {
+                costs[i] = millis;
+                timed++;
+            } else {
+                costs[i] = featureCosts[i] * millisPerUnit;
+            }
+        }
+        return new Estimates(costs, calibrated, timed);
+    }
+
+    static final class Estimates {
+
+        private final double[] costs;
+
+        private final boolean inMillis;
+
+        private final int timedCount;
+
+        private Estimates(double[] costs, boolean inMillis, int timedCount) {
+            this.costs = costs;
+            this.inMillis = inMillis;
+            this.timedCount = timedCount;
+        }
+
+        /**
+         * @return estimated costs in the order of the phenopackets
+         */
+        double[] getCosts() {
+            return costs;
+        }
+
+        /**
+         * @return <code>true</code> if the costs are in milliseconds, otherwise in the relative units of the features
+         */
+        boolean isInMillis() {
+            return inMillis;
+        }
+
+        /**
+         * @return number of the cases whose cost is the time of the previous run
+         */
+        int getTimedCount() {
+            return timedCount;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.commands;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.io.Closeable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits the number of cases in flight, i.e. analysed or waiting for their results to be written, by the heap
+ * occupancy. Results of an analysis hold all the variants of the case, hence too many concurrent cases exhaust the
+ * heap.
+ * <p>
+ * The heap occupancy is checked at the end of each garbage collection, when the heap holds mostly live objects. The
+ * limit is lowered by one whenever the occupancy is above the target, once the cases over the previous limit are
+ * finished, and raised by one, up to the maximum, when the occupancy is below the target by more than
+ * {@link #RAISE_MARGIN} and all the admitted cases are in flight. Each change of the limit is logged.
+ */
+final class HeapAdmissionController implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HeapAdmissionController.class);
+
+    /**
+     * Type of the notifications of the HotSpot garbage collectors, see
+     * <code>com.sun.management.GarbageCollectionNotificationInfo</code>.
+     */
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    /**
+     * The limit is raised only if the occupancy is this far below the target, so that it does not oscillate.
+     */
+    private static final double RAISE_MARGIN = .1;
+
+    private final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+
+    private final NotificationListener listener = this::handleNotification;
+
+    private final int maxConcurrency;
+
+    private final double targetOccupancy;
+
+    private int limit;
+
+    private int inFlight = 0;
+
+    private int minLimit;
+
+    private double peakOccupancy = 0;
+
+    /**
+     * @param maxConcurrency  maximum number of the cases in flight
+     * @param targetOccupancy fraction of the maximum heap size that the heap should not exceed after GC
+     */
+    HeapAdmissionController(int maxConcurrency, double targetOccupancy) {
+        this.maxConcurrency = maxConcurrency;
+        this.targetOccupancy = targetOccupancy;
+        this.limit = maxConcurrency;
+        this.minLimit = maxConcurrency;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                NotificationEmitter emitter = (NotificationEmitter) gc;
+                emitter.addNotificationListener(listener, null, null);
+                emitters.add(emitter);
+            }
+        }
+        if (emitters.isEmpty()) {
+            LOGGER.warn("The JVM does not report garbage collections, the number of concurrent cases is not limited by the heap");
+        }
+    }
+
+    /**
+     * Block until the case can be admitted.
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (inFlight >= limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    private void handleNotification(Notification notification, Object handback) {
+        if (!GC_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        MemoryUsage heap = memoryMXBean.getHeapMemoryUsage();
+        long max = heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+        adjust((double) heap.getUsed() / max);
+    }
+
+    synchronized void adjust(double occupancy) {
+        peakOccupancy = Math.max(peakOccupancy, occupancy);
+        if (occupancy > targetOccupancy && limit > 1 && inFlight <= limit) {
+            // not lowered again until the cases over the lowered limit are finished
+            LOGGER.info("Heap occupancy after GC {}% is above the target {}%, lowering the number of concurrent cases {} -> {}",
+                    percent(occupancy), percent(targetOccupancy), limit, limit - 1);
+            limit--;
+            minLimit = Math.min(minLimit, limit);
+        } else if (occupancy < targetOccupancy - RAISE_MARGIN && limit < maxConcurrency && inFlight >= limit) {
+            LOGGER.info("Heap occupancy after GC {}% is below the target {}%, raising the number of concurrent cases {} -> {}",
+                    percent(occupancy), percent(targetOccupancy), limit, limit + 1);
+            limit++;
+            notifyAll();
+        }
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the lowest limit and the peak heap occupancy, for sizing the machines
+     */
+    synchronized String getStatistics() {
+        return String.format("Heap admission: %d concurrent cases at most, lowest limit %d, final limit %d, peak occupancy after GC %d%% (target %d%%)",
+                maxConcurrency, minLimit, limit, percent(peakOccupancy), percent(targetOccupancy));
+    }
+
+    private static long percent(double fraction) {
+        return Math.round(100 * fraction);
+    }
+
+    @Override
+    public void close() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(listener);
+            } catch (ListenerNotFoundException e) {
+                // not registered anymore
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.commands;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * This command combines the TSV files written by the shards of a run (`--shard-index`, `--shard-count`) into a single
+ * file, e.g. the `ranks.tsv` files of `--simulate-case-and-run-exomiser` or the score files of `--score-phenopackets`.
+ * <p>
+ * The files must have the same header. Lines of the merged file are sorted by the first column, i.e. by the case or
+ * the phenopacket name, the lines with the same first column keep their order.
+ */
+@Component
+public class MergeResultsCommand implements ApplicationRunner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MergeResultsCommand.class);
+
+    private static final String DELIMITER = "\t";
+
+    private final List<Path> inputPaths = new ArrayList<>();
+
+    private Path outputPath;
+
+    private static String firstColumn(String line) {
+        int idx = line.indexOf(DELIMITER);
+        return idx < 0 ? line : line.substring(0, idx);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (!args.containsOption("merge-results")) {
+            // not running this command
+            return;
+        }
+
+        if (!parseCliArgs(args)) {
+            // unable to parse command line, complaints raised in the function
+            return;
+        }
+
+        String header = null;
+        List<String> lines = new ArrayList<>();
+        for (Path inputPath : inputPaths) {
+            List<String> inputLines = Files.readAllLines(inputPath);
+            if (inputLines.isEmpty()) {
+                LOGGER.warn("Skipping empty file '{}'", inputPath);
+                continue;
+            }
+            if (header == null) {
+                header = inputLines.get(0);
+            } else if (!header.equals(inputLines.get(0))) {
+                LOGGER.error("Header of '{}' differs from the header of '{}'", inputPath, inputPaths.get(0));
+                return;
+            }
+            inputLines.subList(1, inputLines.size()).stream()
+                    .filter(line -> !line.isEmpty())
+                    .forEach(lines::add);
+            LOGGER.info("Read {} lines from '{}'", inputLines.size() - 1, inputPath);
+        }
+
+        if (header == null) {
+            LOGGER.error("No lines to merge");
+            return;
+        }
+
+        // stable sort, lines of a phenopacket keep their order
+        lines.sort(Comparator.comparing(MergeResultsCommand::firstColumn));
+
+        try (BufferedWriter writer = Files.newBufferedWriter(outputPath)) {
+            writer.write(header);
+            writer.newLine();
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+        LOGGER.info("Merged {} lines from {} files into '{}'", lines.size(), inputPaths.size(), outputPath);
+    }
+
+    private boolean parseCliArgs(ApplicationArguments args) {
+        // Shard outputs - multiple `--input` options, or comma-separated paths
+        List<String> inputs = args.getOptionValues("input");
+        if (inputs == null || inputs.isEmpty()) {
+            LOGGER.warn("Missing 'input' argument");
+            return false;
+        }
+        for (String input : inputs) {
+            for (String path : input.split(",")) {
+                if (!path.trim().isEmpty()) {
+                    inputPaths.add(Paths.get(path.trim()));
+                }
+            }
+        }
+        for (Path inputPath : inputPaths) {
+            if (!Files.isRegularFile(inputPath)) {
+                LOGGER.warn("Argument 'input' does not point to a file: '{}'", inputPath);
+                return false;
+            }
+        }
+
+        if (!args.containsOption("output")) {
+            LOGGER.warn("Missing 'output' argument");
+            return false;
+        }
+        outputPath = Paths.get(args.getOptionValues("output").get(0));
+        return true;
+    }
+}
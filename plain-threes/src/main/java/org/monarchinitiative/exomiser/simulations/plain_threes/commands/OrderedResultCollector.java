@@ -0,0 +1,81 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.commands;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Writes lines of the ranks file in the order the cases were read in, regardless of the order the cases are
+ * finished in. A line is written as soon as all the preceding cases are finished or skipped.
+ */
+final class OrderedResultCollector {
+
+    private final BufferedWriter writer;
+
+    /**
+     * Lines of the finished cases waiting for the preceding cases, empty for the skipped cases.
+     */
+    private final Map<Integer, Optional<String>> finished = new HashMap<>();
+
+    private int reserved = 0, next = 0, failed = 0;
+
+    private IOException error;
+
+    OrderedResultCollector(BufferedWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * @return index of the first of <code>count</code> consecutive cases
+     */
+    synchronized int reserve(int count) {
+        int first = reserved;
+        reserved += count;
+        return first;
+    }
+
+    synchronized void add(int index, String line) {
+        finished.put(index, Optional.of(line));
+        writeFinished();
+    }
+
+    synchronized void skip(int index) {
+        failed++;
+        finished.put(index, Optional.empty());
+        writeFinished();
+    }
+
+    private void writeFinished() {
+        while (finished.containsKey(next)) {
+            Optional<String> line = finished.remove(next++);
+            if (!line.isPresent() || error != null) {
+                continue;
+            }
+            try {
+                writer.write(line.get());
+                writer.newLine();
+                writer.flush();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * @throws IOException if any of the lines could not be written
+     */
+    synchronized void finish() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        if (next != reserved) {
+            throw new IllegalStateException("Only " + next + " out of " + reserved + " cases were finished");
+        }
+    }
+
+    synchronized int getFailedCount() {
+        return failed;
+    }
+}
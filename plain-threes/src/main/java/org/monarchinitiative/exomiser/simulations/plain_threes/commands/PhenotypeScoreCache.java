@@ -0,0 +1,155 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.commands;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.monarchinitiative.exomiser.core.analysis.AnalysisResults;
+import org.monarchinitiative.exomiser.core.model.Gene;
+import org.monarchinitiative.exomiser.core.model.GeneScore;
+import org.monarchinitiative.exomiser.core.prioritisers.Prioritiser;
+import org.monarchinitiative.exomiser.core.prioritisers.PriorityResult;
+import org.monarchinitiative.exomiser.core.prioritisers.PriorityType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Cache of the phenotype prioritiser results shared by all the analyses of a run. The result of a gene depends only on
+ * the gene and on the set of HPO terms, hence the results are keyed by the canonical (sorted, without duplicates) HPO
+ * term set and by the Entrez gene ID. The analyses of a case and the cases with the same HPO terms share the results.
+ * <p>
+ * The cache holds at most <code>maximumSize</code> gene results, the least recently used results are evicted.
+ */
+final class PhenotypeScoreCache {
+
+    private final Cache<Key, PriorityResult> results;
+
+    PhenotypeScoreCache(long maximumSize) {
+        this.results = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return HPO terms sorted and without duplicates, joined by comma
+     */
+    static String canonicalize(List<String> hpoIds) {
+        TreeSet<String> sorted = new TreeSet<>();
+        hpoIds.forEach(hpoId -> sorted.add(hpoId.trim()));
+        return String.join(",", sorted);
+    }
+
+    /**
+     * @return description of the first difference between the gene rankings, <code>null</code> if the rankings are
+     * the same
+     */
+    static String diffRankings(AnalysisResults expected, AnalysisResults actual) {
+        List<GeneScore> expectedScores = expected.getGeneScores();
+        List<GeneScore> actualScores = actual.getGeneScores();
+        for (int i = 0; i < Math.min(expectedScores.size(), actualScores.size()); i++) {
+            GeneScore e = expectedScores.get(i);
+            GeneScore a = actualScores.get(i);
+            if (!e.getGeneIdentifier().getHgncSymbol().equals(a.getGeneIdentifier().getHgncSymbol())
+                    || Double.compare(e.getCombinedScore(), a.getCombinedScore()) != 0) {
+                return String.format("rank %d: expected %s (%f), got %s (%f)", i + 1,
+                        e.getGeneIdentifier().getHgncSymbol(), e.getCombinedScore(),
+                        a.getGeneIdentifier().getHgncSymbol(), a.getCombinedScore());
+            }
+        }
+        if (expectedScores.size() != actualScores.size()) {
+            return String.format("expected %d genes, got %d", expectedScores.size(), actualScores.size());
+        }
+        return null;
+    }
+
+    /**
+     * @param prioritiser prioritiser computing the results missing in the cache
+     * @return prioritiser returning the cached results
+     */
+    Prioritiser<PriorityResult> wrap(Prioritiser<? extends PriorityResult> prioritiser) {
+        return new CachingPrioritiser(prioritiser);
+    }
+
+    /**
+     * @return number of cached results and hit rate of the gene lookups
+     */
+    String getStatistics() {
+        return String.format("Phenotype score cache: %d results, %d hits, %d misses, hit rate %.1f%%",
+                results.estimatedSize(), results.stats().hitCount(), results.stats().missCount(),
+                100 * results.stats().hitRate());
+    }
+
+    private final class CachingPrioritiser implements Prioritiser<PriorityResult> {
+
+        private final Prioritiser<? extends PriorityResult> delegate;
+
+        private CachingPrioritiser(Prioritiser<? extends PriorityResult> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Stream<PriorityResult> prioritise(List<String> hpoIds, List<Gene> genes) {
+            String hpoKey = canonicalize(hpoIds);
+            List<PriorityResult> cached = new ArrayList<>(genes.size());
+            List<Gene> missing = new ArrayList<>();
+            for (Gene gene : genes) {
+                PriorityResult result = results.getIfPresent(new Key(hpoKey, gene.getEntrezGeneID()));
+                if (result == null) {
+                    missing.add(gene);
+                } else {
+                    cached.add(result);
+                }
+            }
+            if (missing.isEmpty()) {
+                return cached.stream();
+            }
+            // computed outside of the cache, concurrent analyses with the same HPO terms may compute the gene twice
+            List<PriorityResult> computed = delegate.prioritise(hpoIds, missing)
+                    .map(PriorityResult.class::cast)
+                    .collect(Collectors.toList());
+            for (PriorityResult result : computed) {
+                results.put(new Key(hpoKey, result.getGeneId()), result);
+            }
+            return Stream.concat(cached.stream(), computed.stream());
+        }
+
+        @Override
+        public PriorityType getPriorityType() {
+            return delegate.getPriorityType();
+        }
+
+        @Override
+        public String toString() {
+            return "CachingPrioritiser{delegate=" + delegate + '}';
+        }
+    }
+
+    private static final class Key {
+
+        private final String hpoIds;
+
+        private final int geneId;
+
+        private Key(String hpoIds, int geneId) {
+            this.hpoIds = hpoIds;
+            this.geneId = geneId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return geneId == key.geneId && hpoIds.equals(key.hpoIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(hpoIds, geneId);
+        }
+    }
+}
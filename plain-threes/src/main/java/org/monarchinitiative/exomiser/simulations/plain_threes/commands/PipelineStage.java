@@ -0,0 +1,179 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.commands;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Stage of a pipeline: a pool of worker threads taking items from a bounded input queue and passing the results into
+ * the queue of the next stage. Putting an item into a full queue blocks, hence a slow stage applies backpressure to
+ * the stages before it.
+ *
+ * @param <I> type of the items processed by the stage
+ * @param <O> type of the items passed to the next stage
+ */
+final class PipelineStage<I, O> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PipelineStage.class);
+
+    /**
+     * Marks the end of the input, it is put back into the queue by each worker so that all the workers see it.
+     */
+    private static final Object END = new Object();
+
+    private final String name;
+
+    private final BlockingQueue<Object> queue;
+
+    private final int maxBatchSize;
+
+    private final Processor<I, O> processor;
+
+    private final BiConsumer<List<I>, Throwable> failureHandler;
+
+    private final PipelineStage<O, ?> next;
+
+    private final List<Thread> workers;
+
+    private final AtomicInteger runningWorkers;
+
+    /**
+     * @param name           name of the stage used in the log and in the names of the worker threads
+     * @param workerCount    number of the worker threads
+     * @param queueCapacity  capacity of the input queue
+     * @param maxBatchSize   maximum number of queued items passed to the <code>processor</code> at once
+     * @param processor      processor of the items
+     * @param failureHandler called with the items whose processing failed, including by an {@link Error}, the other
+     *                       items are processed
+     * @param next           stage the results are passed to, <code>null</code> for the last stage
+     */
+    PipelineStage(String name, int workerCount, int queueCapacity, int maxBatchSize, Processor<I, O> processor,
+                  BiConsumer<List<I>, Throwable> failureHandler, PipelineStage<O, ?> next) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.maxBatchSize = maxBatchSize;
+        this.processor = processor;
+        this.failureHandler = failureHandler;
+        this.next = next;
+        this.workers = new ArrayList<>(workerCount);
+        this.runningWorkers = new AtomicInteger(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::work, name + "-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of items waiting in the input queue
+     */
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    void start() {
+        workers.forEach(Thread::start);
+    }
+
+    /**
+     * Put the <code>item</code> into the input queue, waiting while the queue is full.
+     */
+    void put(I item) throws InterruptedException {
+        queue.put(item);
+    }
+
+    /**
+     * Signal that no more items will be put. The next stage is finished when all the workers are done.
+     */
+    void finish() throws InterruptedException {
+        queue.put(END);
+    }
+
+    /**
+     * Wait until all the workers are done.
+     */
+    void awaitTermination() throws InterruptedException {
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * Interrupt the workers, e.g. if the pipeline cannot be finished.
+     */
+    void abort() {
+        workers.forEach(Thread::interrupt);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void work() {
+        try {
+            while (true) {
+                Object first = queue.take();
+                if (first == END) {
+                    queue.put(END);
+                    break;
+                }
+                List<Object> taken = new ArrayList<>(maxBatchSize);
+                taken.add(first);
+                queue.drainTo(taken, maxBatchSize - 1);
+                if (taken.remove(END)) {
+                    queue.put(END);
+                }
+                List<I> items = (List<I>) (List<?>) taken;
+                try {
+                    processor.process(items, next == null ? item -> {} : next::put);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Throwable e) {
+                    // an Error of a single case, e.g. StackOverflowError, must not stop the worker
+                    failureHandler.accept(items, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warn("Worker of '{}' stage was interrupted", name);
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            LOGGER.error("Worker of '{}' stage failed", name, e);
+        } finally {
+            // the next stage is finished even if the worker failed, otherwise the pipeline never terminates
+            if (runningWorkers.decrementAndGet() == 0 && next != null) {
+                try {
+                    next.finish();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the results of the stage.
+     */
+    interface Sink<O> {
+
+        void put(O item) throws InterruptedException;
+    }
+
+    /**
+     * Processes items of the stage.
+     */
+    interface Processor<I, O> {
+
+        /**
+         * @param items non-empty list of at most <code>maxBatchSize</code> items
+         * @param sink  receives the results passed to the next stage
+         */
+        void process(List<I> items, Sink<O> sink) throws Exception;
+    }
+}
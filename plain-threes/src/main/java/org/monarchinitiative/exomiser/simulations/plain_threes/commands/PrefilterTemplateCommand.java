@@ -0,0 +1,58 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.commands;
+
+import org.monarchinitiative.exomiser.simulations.plain_threes.simulators.TemplatePrefilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * This command removes records of the template VCF that fail the case-independent filters of the
+ * `--simulate-case-and-run-exomiser` analyses, i.e. the quality and the failed variant filter.
+ * <p>
+ * The reduced template is written next to the template and used by `--simulate-case-and-run-exomiser` instead of the
+ * template, as long as the filters of the analyses and the template do not change.
+ */
+@Component
+public class PrefilterTemplateCommand implements ApplicationRunner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PrefilterTemplateCommand.class);
+
+    private Path templateVcfPath;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (!args.containsOption("prefilter-template")) {
+            // not running this command
+            return;
+        }
+
+        if (!parseCliArgs(args)) {
+            // unable to parse command line, complaints raised in the function
+            return;
+        }
+
+        TemplatePrefilter prefilter = SimulateCaseAndRunExomiserCommand.TEMPLATE_PREFILTER;
+        LOGGER.info("Filtering '{}' by '{}'", templateVcfPath, prefilter.getFingerprint());
+        prefilter.write(templateVcfPath);
+    }
+
+    private boolean parseCliArgs(ApplicationArguments args) {
+        if (!args.containsOption("vcf")) {
+            LOGGER.warn("Missing 'vcf' argument");
+            return false;
+        }
+        templateVcfPath = Paths.get(args.getOptionValues("vcf").get(0));
+
+        if (!Files.isRegularFile(templateVcfPath)) {
+            LOGGER.warn("Argument 'vcf' does not point to a file");
+            return false;
+        }
+        return true;
+    }
+}
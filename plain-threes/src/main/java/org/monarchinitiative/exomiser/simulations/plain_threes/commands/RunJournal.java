@@ -0,0 +1,159 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.commands;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only journal of the cases completed by a run. Each line holds the name of the case, the time spent analysing
+ * the case in milliseconds and its line of the ranks file, the first line holds the fingerprint of the run
+ * configuration. A line is flushed as soon as the case is
+ * completed, hence the journal survives a crash of the run and the completed cases can be skipped when the run is
+ * resumed with the same configuration.
+ * <p>
+ * Lines of the journal are written before the lines of the ranks file, hence the ranks file is rebuilt from the
+ * journal when the run is resumed. An incomplete last line, left by a crash while writing it, is ignored.
+ * <p>
+ * The analysis times of a journal are used to estimate the costs of the cases of a later run, see
+ * {@link CaseCostModel}.
+ */
+final class RunJournal implements Closeable {
+
+    private static final String FINGERPRINT_PREFIX = "#fingerprint\t";
+
+    private final BufferedWriter writer;
+
+    /**
+     * Lines of the ranks file of the completed cases by the case name.
+     */
+    private final Map<String, String> completed;
+
+    private RunJournal(BufferedWriter writer, Map<String, String> completed) {
+        this.writer = writer;
+        this.completed = completed;
+    }
+
+    /**
+     * Start a new journal, replacing the existing one.
+     */
+    static RunJournal create(Path journalPath, String fingerprint) throws IOException {
+        BufferedWriter writer = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8);
+        writer.write(FINGERPRINT_PREFIX + fingerprint);
+        writer.write('\n');
+        writer.flush();
+        return new RunJournal(writer, new HashMap<>());
+    }
+
+    /**
+     * Read the completed cases from the existing journal and continue appending to it. A new journal is started if
+     * there is none.
+     *
+     * @throws IllegalArgumentException if the journal was written by a run with a different configuration
+     */
+    static RunJournal resume(Path journalPath, String fingerprint) throws IOException {
+        if (!Files.isRegularFile(journalPath)) {
+            return create(journalPath, fingerprint);
+        }
+        byte[] content = Files.readAllBytes(journalPath);
+        int end = completeLinesLength(content);
+        String[] lines = readLines(journalPath, content, end);
+        String recorded = lines[0].substring(FINGERPRINT_PREFIX.length());
+        if (!recorded.equals(fingerprint)) {
+            throw new IllegalArgumentException("Journal '" + journalPath + "' was written by a run with configuration '"
+                    + recorded + "', not '" + fingerprint + "'");
+        }
+        Map<String, String> completed = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            String[] fields = lines[i].split("\t", 3);
+            if (fields.length == 3) {
+                completed.put(fields[0], fields[2]);
+            }
+        }
+        // drop the incomplete last line
+        try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+            channel.truncate(end);
+        }
+        BufferedWriter writer = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        return new RunJournal(writer, completed);
+    }
+
+    /**
+     * Read the analysis times of the completed cases of a journal, regardless of the configuration it was written by.
+     *
+     * @return analysis time in milliseconds by the case name
+     */
+    static Map<String, Long> readTimings(Path journalPath) throws IOException {
+        byte[] content = Files.readAllBytes(journalPath);
+        String[] lines = readLines(journalPath, content, completeLinesLength(content));
+        Map<String, Long> timings = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            String[] fields = lines[i].split("\t", 3);
+            if (fields.length == 3) {
+                try {
+                    timings.put(fields[0], Long.parseLong(fields[1]));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid analysis time in line " + (i + 1) + " of journal '" + journalPath + "'");
+                }
+            }
+        }
+        return timings;
+    }
+
+    /**
+     * @return length of the content without the incomplete last line
+     */
+    private static int completeLinesLength(byte[] content) {
+        int end = content.length;
+        while (end > 0 && content[end - 1] != '\n') {
+            end--;
+        }
+        return end;
+    }
+
+    private static String[] readLines(Path journalPath, byte[] content, int end) {
+        String[] lines = new String(content, 0, end, StandardCharsets.UTF_8).split("\n");
+        if (lines.length == 0 || !lines[0].startsWith(FINGERPRINT_PREFIX)) {
+            throw new IllegalArgumentException("Journal '" + journalPath + "' does not start with the fingerprint");
+        }
+        return lines;
+    }
+
+    synchronized boolean isCompleted(String caseName) {
+        return completed.containsKey(caseName);
+    }
+
+    /**
+     * @return line of the ranks file of the completed case, <code>null</code> if the case is not completed
+     */
+    synchronized String getRanksLine(String caseName) {
+        return completed.get(caseName);
+    }
+
+    synchronized int getCompletedCount() {
+        return completed.size();
+    }
+
+    /**
+     * Record the case as completed.
+     *
+     * @param analysisMillis time spent analysing the case
+     */
+    synchronized void record(String caseName, long analysisMillis, String ranksLine) throws IOException {
+        writer.write(caseName + "\t" + analysisMillis + "\t" + ranksLine);
+        writer.write('\n');
+        writer.flush();
+        completed.put(caseName, ranksLine);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -49,6 +49,8 @@ import java.util.stream.Collectors;
  * <li><code>`--pp-dir`</code> - path to directory with JSON files corresponding to Phenopackets</li>
  * <li><code>`--pp`</code> - path to individual JSON file corresponding to Phenopacket</li>
  * <li><code>`--output-scores`</code> - path where results in TSV format will be written</li>
+ * <li><code>`--shard-index`</code>, <code>`--shard-count`</code> - optional, score only the phenopackets of the shard,
+ * the shard outputs are combined by `--merge-results`</li>
  * </ul>
  * </p>
  * <b>!! IMPORTANT !!</b> - this code does not work with other than RefSeq splicing transcript source.
@@ -71,6 +73,16 @@ public class ScorePhenopacketsCommand implements ApplicationRunner {
      */
     private final List<Path> phenopacketPaths = new ArrayList<>();
 
+    /**
+     * Index of the shard of the phenopackets run by this process, see {@link Utils#isInShard(String, int, int)}.
+     */
+    private int shardIndex = 0;
+
+    /**
+     * Number of the shards the phenopackets are split into.
+     */
+    private int shardCount = 1;
+
     /**
      * Path to TSV file where results will be written.
      */
@@ -245,6 +257,18 @@ public class ScorePhenopacketsCommand implements ApplicationRunner {
             phenopacketPaths.addAll(pps.stream().map(Paths::get).collect(Collectors.toList()));
         }
 
+        // Slice of the phenopackets run by this process
+        try {
+            int[] shard = Utils.parseShardOptions(args.getOptionValues("shard-index"), args.getOptionValues("shard-count"));
+            shardIndex = shard[0];
+            shardCount = shard[1];
+        } catch (IllegalArgumentException e) {
+            LOGGER.error(e.getMessage());
+            return false;
+        }
+
+        Utils.retainShard(phenopacketPaths, path -> path.getFileName().toString(), shardIndex, shardCount);
+
         // Output file path - where to write TSV file with scores
         if (!args.containsOption("output-scores")) {
             LOGGER.error("Missing '--output-scores' argument");
@@ -4,6 +4,7 @@ import de.charite.compbio.jannovar.annotation.VariantEffect;
 import de.charite.compbio.jannovar.mendel.SubModeOfInheritance;
 import org.monarchinitiative.exomiser.core.Exomiser;
 import org.monarchinitiative.exomiser.core.analysis.Analysis;
+import org.monarchinitiative.exomiser.core.analysis.AnalysisBuilder;
 import org.monarchinitiative.exomiser.core.analysis.AnalysisMode;
 import org.monarchinitiative.exomiser.core.analysis.AnalysisResults;
 import org.monarchinitiative.exomiser.core.analysis.util.InheritanceModeOptions;
@@ -11,35 +12,79 @@ import org.monarchinitiative.exomiser.core.genome.GenomeAssembly;
 import org.monarchinitiative.exomiser.core.model.GeneScore;
 import org.monarchinitiative.exomiser.core.model.frequency.FrequencySource;
 import org.monarchinitiative.exomiser.core.model.pathogenicity.PathogenicitySource;
+import org.monarchinitiative.exomiser.core.prioritisers.HiPhiveOptions;
+import org.monarchinitiative.exomiser.core.prioritisers.Prioritiser;
+import org.monarchinitiative.exomiser.core.prioritisers.PriorityFactory;
+import org.monarchinitiative.exomiser.core.prioritisers.PriorityResult;
 import org.monarchinitiative.exomiser.core.writers.AnalysisResultsWriter;
 import org.monarchinitiative.exomiser.core.writers.OutputFormat;
 import org.monarchinitiative.exomiser.core.writers.OutputSettings;
 import org.monarchinitiative.exomiser.simulations.plain_threes.Utils;
+import org.monarchinitiative.exomiser.simulations.plain_threes.simulators.CachingVcfSimulator;
+import org.monarchinitiative.exomiser.simulations.plain_threes.simulators.ContigParallelVcfSimulator;
+import org.monarchinitiative.exomiser.simulations.plain_threes.simulators.GenomicRegion;
+import org.monarchinitiative.exomiser.simulations.plain_threes.simulators.InMemoryVcfSimulator;
+import org.monarchinitiative.exomiser.simulations.plain_threes.simulators.PooledVcfSimulator;
+import org.monarchinitiative.exomiser.simulations.plain_threes.simulators.PreRenderedVcfSimulator;
+import org.monarchinitiative.exomiser.simulations.plain_threes.simulators.RegionSet;
+import org.monarchinitiative.exomiser.simulations.plain_threes.simulators.ScratchDirectory;
 import org.monarchinitiative.exomiser.simulations.plain_threes.simulators.SingleVcfSimulator;
+import org.monarchinitiative.exomiser.simulations.plain_threes.simulators.TemplatePool;
+import org.monarchinitiative.exomiser.simulations.plain_threes.simulators.TemplatePrefilter;
 import org.monarchinitiative.exomiser.simulations.plain_threes.simulators.VcfSimulator;
+import org.monarchinitiative.exomiser.simulations.plain_threes.simulators.VcfTemplate;
 import org.phenopackets.schema.v1.Phenopacket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.ApplicationArguments;
 import org.springframework.boot.ApplicationRunner;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
 import org.springframework.stereotype.Component;
 
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * This runner implements command `--simulate-case-and-run-exomiser`.
  * <p>
  * Take a directory full of Phenopackets, simulate exome VCF based on a single VCF file, run Exomiser with and without
- * SPLICING score and write the results into given directory.
+ * SPLICING score and write the results into given directory. The Exomiser configurations can be replaced by an analysis
+ * matrix, see {@link AnalysisConfiguration}.
  */
 @Component
 public class SimulateCaseAndRunExomiserCommand implements ApplicationRunner {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SimulateCaseAndRunExomiserCommand.class);
 
+    /**
+     * Period of logging the depths of the pipeline queues.
+     */
+    private static final long QUEUE_LOG_PERIOD_SECONDS = 60;
+
+    /**
+     * Suffix of the per-case output directory while the outputs are being written.
+     */
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    /**
+     * Written into the rank columns of the cases whose analyses exceeded `--case-timeout`.
+     */
+    private static final String TIMEOUT = "TIMEOUT";
+
     /**
      * For splicing aware analysis - SPLICING, REVEL and MVP only.
      */
@@ -50,6 +95,17 @@ public class SimulateCaseAndRunExomiserCommand implements ApplicationRunner {
      */
     private static final Set<PathogenicitySource> PS_NOT_SPLICING = EnumSet.of(PathogenicitySource.REVEL, PathogenicitySource.MVP);
 
+    /**
+     * Minimum QUAL of the variants passing the quality filter.
+     */
+    private static final int MIN_QUALITY = 200;
+
+    /**
+     * Template records failing the case-independent quality and failed variant filters of the analyses cannot pass in
+     * any case, see {@link PrefilterTemplateCommand}.
+     */
+    static final TemplatePrefilter TEMPLATE_PREFILTER = new TemplatePrefilter(MIN_QUALITY, true);
+
     /**
      * For frequency & inheritance filtering
      */
@@ -87,6 +143,13 @@ public class SimulateCaseAndRunExomiserCommand implements ApplicationRunner {
 
     private static final Set<OutputFormat> OUTPUT_FORMATS = EnumSet.of(OutputFormat.HTML, OutputFormat.TSV_VARIANT, OutputFormat.VCF);
 
+    /**
+     * Splicing-aware and splicing-agnostic configurations run if no analysis matrix is given.
+     */
+    private static final List<AnalysisConfiguration> DEFAULT_ANALYSIS_MATRIX = Arrays.asList(
+            new AnalysisConfiguration("YES", "WITH_SPLICING", PS_W_SPLICING, FrequencySource.ALL_EXTERNAL_FREQ_SOURCES),
+            new AnalysisConfiguration("NO", "WITHOUT_SPLICING", PS_NOT_SPLICING, FREQUENCY_SOURCES));
+
     static {
         Map<SubModeOfInheritance, Float> inheritanceModeFrequencyCutoffs = new EnumMap<>(SubModeOfInheritance.class);
         // all frequencies are in percentage values
@@ -103,6 +166,45 @@ public class SimulateCaseAndRunExomiserCommand implements ApplicationRunner {
     // ------------------------------      DEPENDENCIES      ------------------------------------------
     private final Exomiser exomiser;
 
+    /**
+     * Cache of the Exomiser variant data lookups, if configured by <code>spring.cache.type</code>.
+     */
+    private final ObjectProvider<CacheManager> cacheManagerProvider;
+
+    private final PriorityFactory priorityFactory;
+
+    /**
+     * Number of the analyses whose ranking with the phenotype score cache differs from the ranking without it.
+     */
+    private final AtomicInteger cacheMismatches = new AtomicInteger();
+
+    /**
+     * Start of the first and end of the last analysis of the run, in nanoseconds, i.e. the actual makespan.
+     */
+    private final AtomicLong firstAnalysisStart = new AtomicLong(Long.MAX_VALUE), lastAnalysisEnd = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Analysis time and estimated cost of the analysed cases.
+     */
+    private final LongAdder analysedMillis = new LongAdder();
+
+    private final DoubleAdder analysedEstimatedCost = new DoubleAdder();
+
+    /**
+     * Cache of the simulated VCF files, if enabled by `--vcf-cache-dir`.
+     */
+    private CachingVcfSimulator vcfCache;
+
+    /**
+     * Limits the cases in flight by the heap occupancy, if enabled by `--heap-target`.
+     */
+    private HeapAdmissionController admissionController;
+
+    /**
+     * Runs the analyses of the cases if `--case-timeout` is set, so that the analyse stage can abandon a case.
+     */
+    private AnalysisBudget budget;
+
 
     // ------------------------------        CLI ARGS        ------------------------------------------
 
@@ -116,44 +218,201 @@ public class SimulateCaseAndRunExomiserCommand implements ApplicationRunner {
      */
     private Path templateVcfPath;
 
+    /**
+     * Name of the {@link VcfSimulator} implementation used to create the simulated VCF files.
+     */
+    private String simulatorName = "single";
+
+    /**
+     * Write the simulated VCF files block-compressed, with tabix index.
+     */
+    private boolean compressVcf = false;
+
+    /**
+     * Directory where the simulated VCF files are cached across the runs, no caching if <code>null</code>.
+     */
+    private Path vcfCacheDirectory;
+
+    /**
+     * Budget of the VCF cache in bytes.
+     */
+    private long vcfCacheSize = Long.MAX_VALUE;
+
+    /**
+     * Directory where the per-run scratch directory is created, e.g. on <code>tmpfs</code>.
+     */
+    private Path scratchDirectoryParent = Paths.get(System.getProperty("java.io.tmpdir"));
+
+    /**
+     * Maximum number of records kept in memory while sorting unsorted template.
+     */
+    private int sortMaxRecordsInRam = SingleVcfSimulator.DEFAULT_MAX_RECORDS_IN_RAM;
+
+    /**
+     * Number of threads used by the simulator, if the simulator supports it.
+     */
+    private int simulationThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Number of VCF files simulated at once, before running the analyses.
+     */
+    private int simulationBatchSize = 1;
+
+    /**
+     * Number of cases analysed concurrently.
+     */
+    private int threads = 1;
+
+    /**
+     * Number of threads simulating the VCF files.
+     */
+    private int simulationWorkers = 1;
+
+    /**
+     * Number of threads writing the analysis results.
+     */
+    private int writerWorkers = 1;
+
+    /**
+     * Pool file of the background templates used by the <code>pooled</code> simulator.
+     */
+    private Path templatePoolPath;
+
+    /**
+     * Directory with the template VCF files the pool is built from if the pool file does not exist yet.
+     */
+    private Path templatePoolVcfDirectory;
+
+    /**
+     * Seed of the template choice of the <code>pooled</code> simulator.
+     */
+    private long templateSeed = 0;
+
+    /**
+     * BED file with the regions the template records are restricted to, all the records are used if <code>null</code>.
+     */
+    private Path regionsPath;
+
+    /**
+     * Names of the BED regions to use, e.g. gene symbols of a gene panel. All the regions are used if empty.
+     */
+    private Set<String> regionGenes = new HashSet<>();
+
+    /**
+     * Number of bases added on each side of the regions.
+     */
+    private int regionFlank = 0;
+
+    /**
+     * Use the template reduced by {@link PrefilterTemplateCommand} if it matches the filters of the analyses.
+     */
+    private boolean usePrefilteredTemplate = true;
+
+    /**
+     * Run each analysis without the phenotype score cache as well and compare the rankings.
+     */
+    private boolean verifyPhenotypeCache = false;
+
+    /**
+     * Skip the cases completed by the previous run recorded in the journal.
+     */
+    private boolean resume = false;
+
+    /**
+     * Maximum number of the HiPhive gene results shared among the analyses, no sharing if <code>0</code>.
+     */
+    private long phenotypeCacheSize = 0;
+
+    /**
+     * HiPhive results shared among the analyses, <code>null</code> if disabled.
+     */
+    private PhenotypeScoreCache phenotypeScoreCache;
+
+    /**
+     * Exomiser configurations run for each case.
+     */
+    private List<AnalysisConfiguration> analysisMatrix = DEFAULT_ANALYSIS_MATRIX;
+
+    /**
+     * Analyses whose Exomiser outputs are written: 'all', 'failures' or 'none'.
+     */
+    private String writeOutputs = "all";
+
+    /**
+     * The analysis failed if the causal gene is ranked worse than this.
+     */
+    private int failureRank = 1;
+
+    /**
+     * Wall-clock budget for the analyses of a case in seconds, <code>0</code> if unlimited.
+     */
+    private long caseTimeoutSeconds = 0;
+
+    /**
+     * Heap occupancy after GC, in percent of the maximum heap size, the cases in flight are limited to. <code>0</code>
+     * if the cases are not limited.
+     */
+    private int heapTarget = 0;
+
+    /**
+     * Order the cases are started in: 'input' or 'longest-first'.
+     */
+    private String schedule = "input";
+
+    /**
+     * Journal of a previous run with the analysis times of the cases, used by the 'longest-first' schedule.
+     */
+    private Path caseCostsPath;
+
+    /**
+     * Analysis times of the previous run by the case name.
+     */
+    private Map<String, Long> caseTimings = Collections.emptyMap();
+
+    /**
+     * Index of the shard of the phenopackets run by this process, see {@link Utils#isInShard(String, int, int)}.
+     */
+    private int shardIndex = 0;
+
+    /**
+     * Number of the shards the phenopackets are split into.
+     */
+    private int shardCount = 1;
+
     /**
      * Path to directory where output will be directed.
      */
     private Path outputPath;
 
 
-    public SimulateCaseAndRunExomiserCommand(Exomiser exomiser) {
+    public SimulateCaseAndRunExomiserCommand(Exomiser exomiser, ObjectProvider<CacheManager> cacheManagerProvider,
+                                             PriorityFactory priorityFactory) {
         this.exomiser = exomiser;
+        this.cacheManagerProvider = cacheManagerProvider;
+        this.priorityFactory = priorityFactory;
     }
 
-    private static SimpleResults evaluateResults(Phenopacket pp, AnalysisResults splicingAgnosticResults, AnalysisResults splicingAwareResults) {
+    private static SimpleResults evaluateResults(Phenopacket pp, List<AnalysisResults> results) {
         String geneSymbol = pp.getGenes(0).getSymbol();
 
-        int agnosticRank = -1;
-        final List<GeneScore> agnosticScores = splicingAgnosticResults.getGeneScores();
-        for (int i = 0; i < agnosticScores.size(); i++) {
-            final GeneScore gs = agnosticScores.get(i);
-            if (gs.getGeneIdentifier().getHgncSymbol().equals(geneSymbol)) {
-                agnosticRank = i + 1; // if i=0, then the gene was in fact the gene #1
-                break;
-            }
-        }
-
-        int awareRank = -1;
-        final List<GeneScore> awareScores = splicingAwareResults.getGeneScores();
-        for (int i = 0; i < awareScores.size(); i++) {
-            final GeneScore gs = awareScores.get(i);
-            if (gs.getGeneIdentifier().getHgncSymbol().equals(geneSymbol)) {
-                awareRank = i + 1;
-                break;
+        List<Integer> ranks = new ArrayList<>(results.size());
+        for (AnalysisResults analysisResults : results) {
+            int rank = -1;
+            final List<GeneScore> geneScores = analysisResults.getGeneScores();
+            for (int i = 0; i < geneScores.size(); i++) {
+                final GeneScore gs = geneScores.get(i);
+                if (gs.getGeneIdentifier().getHgncSymbol().equals(geneSymbol)) {
+                    rank = i + 1; // if i=0, then the gene was in fact the gene #1
+                    break;
+                }
             }
+            ranks.add(rank);
         }
 
         return SimpleResults.builder()
                 .setCaseName(pp.getId())
                 .setGeneSymbol(geneSymbol)
-                .setSplicingAgnosticRank(agnosticRank)
-                .setSplicingAwareRank(awareRank)
+                .setRanks(ranks)
                 .setSplicingPathomechanism(Utils.getSplicingPathomechanism(pp.getVariantsList()))
                 .build();
     }
@@ -170,136 +429,641 @@ public class SimulateCaseAndRunExomiserCommand implements ApplicationRunner {
             return;
         }
 
-        VcfSimulator simulator = new SingleVcfSimulator(templateVcfPath);
+        if (templateVcfPath != null && usePrefilteredTemplate) {
+            templateVcfPath = TEMPLATE_PREFILTER.resolve(templateVcfPath);
+        }
+
+        deletePartialOutputs();
+
+        // the journal is the record of the completed cases, the ranks file is rebuilt from it when resuming
+        Path journalPath = outputPath.resolve("journal.tsv");
+        RunJournal journal;
+        try {
+            journal = resume
+                    ? RunJournal.resume(journalPath, describeConfiguration())
+                    : RunJournal.create(journalPath, describeConfiguration());
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Unable to resume the run, run it without '--resume' to start over: {}", e.getMessage());
+            return;
+        }
+        if (resume) {
+            LOGGER.info("Resuming the run, {} case(s) were completed before", journal.getCompletedCount());
+        }
 
         Path ranksPath = outputPath.resolve("ranks.tsv");
-        try (BufferedWriter resultWriter = Files.newBufferedWriter(ranksPath)) {
+        ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor();
+        List<PipelineStage<SimulationCase, ?>> stages = new ArrayList<>();
+        try (RunJournal runJournal = journal;
+             ScratchDirectory scratchDirectory = ScratchDirectory.create(scratchDirectoryParent);
+             VcfSimulator simulator = createSimulator(scratchDirectory);
+             BufferedWriter resultWriter = Files.newBufferedWriter(ranksPath)) {
+            if (simulator instanceof CachingVcfSimulator) {
+                vcfCache = (CachingVcfSimulator) simulator;
+            }
+            if (phenotypeCacheSize > 0) {
+                phenotypeScoreCache = new PhenotypeScoreCache(phenotypeCacheSize);
+            }
+            if (heapTarget > 0) {
+                admissionController = new HeapAdmissionController(threads, heapTarget / 100.);
+            }
+            if (caseTimeoutSeconds > 0) {
+                budget = new AnalysisBudget(caseTimeoutSeconds);
+            }
+
             // write header of the ranks file
             String delimiter = "\t";
-            resultWriter.write(String.join(delimiter, Arrays.asList("CASE", "WITH_SPLICING", "WITHOUT_SPLICING", "PATHOMECHANISM")));
+            List<String> header = new ArrayList<>();
+            header.add("CASE");
+            analysisMatrix.forEach(configuration -> header.add(configuration.getColumn()));
+            header.add("PATHOMECHANISM");
+            resultWriter.write(String.join(delimiter, header));
             resultWriter.newLine();
 
-            // -----------------------    FOR EACH PHENOPACKET    --------------------------------------
+            OrderedResultCollector collector = new OrderedResultCollector(resultWriter);
+            BiConsumer<List<SimulationCase>, Throwable> failureHandler = (cases, e) -> {
+                for (SimulationCase simulationCase : cases) {
+                    LOGGER.error("Processing of '{}' failed", simulationCase.phenopacketPath, e);
+                    releaseVcf(scratchDirectory, simulationCase);
+                    releaseAdmission(simulationCase);
+                    collector.skip(simulationCase.index);
+                }
+            };
+
+            // -----------------------    PARSE -> SIMULATE -> ANALYSE -> WRITE    ---------------------
+            // the stages are connected by bounded queues, a slow stage blocks the stages before it
+            PipelineStage<SimulationCase, Void> writeStage = new PipelineStage<>("write", writerWorkers, 2 * writerWorkers, 1,
+                    (cases, sink) -> writeResults(cases.get(0), scratchDirectory, runJournal, collector), failureHandler, null);
+            PipelineStage<SimulationCase, SimulationCase> analyseStage = new PipelineStage<>("analyse", threads, 2 * threads, 1,
+                    (cases, sink) -> sink.put(runAnalyses(cases.get(0), scratchDirectory)), failureHandler, writeStage);
+            PipelineStage<SimulationCase, SimulationCase> simulateStage = new PipelineStage<>("simulate", simulationWorkers,
+                    2 * simulationWorkers * simulationBatchSize, simulationBatchSize,
+                    (cases, sink) -> simulate(simulator, cases, sink), failureHandler, analyseStage);
+            PipelineStage<SimulationCase, SimulationCase> parseStage = new PipelineStage<>("parse", 1, 2 * threads, 1,
+                    (cases, sink) -> {
+                        if (parsePhenopacket(cases.get(0))) {
+                            sink.put(cases.get(0));
+                        } else {
+                            collector.skip(cases.get(0).index);
+                        }
+                    }, failureHandler, simulateStage);
+            stages.addAll(Arrays.asList(parseStage, simulateStage, analyseStage, writeStage));
+            stages.forEach(PipelineStage::start);
+            monitor.scheduleAtFixedRate(() -> logQueueDepths(stages), QUEUE_LOG_PERIOD_SECONDS, QUEUE_LOG_PERIOD_SECONDS, TimeUnit.SECONDS);
+
+            List<SimulationCase> pending = new ArrayList<>();
             for (Path phenopacketPath : phenopacketPaths) {
-                LOGGER.info("Reading phenopacket from '{}'", phenopacketPath);
-                Phenopacket pp = Utils.readPhenopacket(phenopacketPath);
-                if (pp.getSubject().getId().isEmpty()) {
-                    LOGGER.error("Phenopacket subject's ID must not be empty. Unable to continue");
-                    continue;
+                int index = collector.reserve(1);
+                String ranksLine = runJournal.getRanksLine(phenopacketPath.toFile().getName());
+                if (ranksLine == null) {
+                    pending.add(new SimulationCase(index, phenopacketPath));
+                } else {
+                    // completed by the resumed run
+                    collector.add(index, ranksLine);
                 }
+            }
+            CaseCostModel.Estimates estimates = null;
+            if (schedule.equals("longest-first")) {
+                estimates = scheduleLongestFirst(pending);
+            }
+            for (SimulationCase simulationCase : pending) {
+                parseStage.put(simulationCase);
+            }
+            parseStage.finish();
+            for (PipelineStage<SimulationCase, ?> stage : stages) {
+                stage.awaitTermination();
+            }
+            logQueueDepths(stages);
 
-                if (pp.getGenesCount() != 1) {
-                    LOGGER.error("Phenopackets used for simulation MUST have exactly one gene");
-                    continue;
-                }
+            collector.finish();
+            if (collector.getFailedCount() > 0) {
+                LOGGER.error("{} case(s) failed or were skipped, see the log above for details", collector.getFailedCount());
+            }
 
-                if (pp.getDiseasesCount() != 1) {
-                    LOGGER.error("Phenopackets used for simulation MUST have exactly one disease");
-                    continue;
+            if (simulator instanceof CachingVcfSimulator) {
+                LOGGER.info(((CachingVcfSimulator) simulator).getStatistics());
+            }
+            logCacheStatistics();
+            if (estimates != null) {
+                logMakespan(estimates);
+            }
+            if (phenotypeScoreCache != null) {
+                LOGGER.info(phenotypeScoreCache.getStatistics());
+            }
+            if (admissionController != null) {
+                LOGGER.info(admissionController.getStatistics());
+            }
+            if (budget != null && budget.getTimedOutCount() > 0) {
+                LOGGER.error("{} case(s) exceeded the {}s budget and were recorded as {}, '--resume' runs them again",
+                        budget.getTimedOutCount(), caseTimeoutSeconds, TIMEOUT);
+            }
+            if (verifyPhenotypeCache) {
+                if (cacheMismatches.get() > 0) {
+                    LOGGER.error("{} analyses with the phenotype score cache differ from the analyses without it", cacheMismatches.get());
+                } else {
+                    LOGGER.info("All the analyses with the phenotype score cache match the analyses without it");
                 }
+            }
+        } finally {
+            monitor.shutdownNow();
+            stages.forEach(PipelineStage::abort);
+            if (admissionController != null) {
+                admissionController.close();
+            }
+            if (budget != null) {
+                budget.close();
+            }
+        }
 
+        LOGGER.info("くまくま━━━━━━ヽ（ ・(ｪ)・ ）ノ━━━━━━ !!!");
+        LOGGER.info("                 Done!               ");
+    }
 
-                // -----------------------    CREATE THE SIMULATED VCF FILE    -------------------------
-                LOGGER.info("Creating simulated VCF file");
-                Path vcfPath = simulator.simulateVcfWithPhenopacket(pp);
-
-                String ppFileName = phenopacketPath.toFile().getName();
-
-                // Exomiser results for given phenopacket will be written here
-                Path phenopacketOutputDir = Files.createDirectories(this.outputPath.resolve(ppFileName));
-
-                // -------------------------------------------------------------------------------------
-                //
-                // First run the analysis without splicing scores
-                //
-                LOGGER.info("\n\n\u266B\u266C\u266A\u266B\u266C\u266A\u266B\u266C\u266A\u266B\u266C\u266A\u266B\u266C\u266A\u266B\u266C\u266A\u266B\u266C\u266A\u266B\u266C\u266A" +
-                        "   Creating splicing-agnostic analysis   " +
-                        "\u266B\u266C\u266A\u266B\u266C\u266A\u266B\u266C\u266A\u266B\u266C\u266A\u266B\u266C\u266A\u266B\u266C\u266A\u266B\u266C\u266A\u266B\u266C\u266A\n");
-                String sampleName = pp.getSubject().getId().replaceAll("\\s+", "_");
-
-                List<String> phenotypesAsHpoStrings = Utils.getPresentPhenotypesAsHpoStrings(pp);
-
-                Analysis splicingAgnosticAnalysis = exomiser.getAnalysisBuilder()
-                        .genomeAssembly(GenomeAssembly.HG19)
-                        .vcfPath(vcfPath)
-                        .probandSampleName(sampleName)
-                        .hpoIds(phenotypesAsHpoStrings)
-                        .analysisMode(AnalysisMode.PASS_ONLY)
-                        .inheritanceModes(INHERITANCE_MODE_OPTIONS)
-                        .frequencySources(FREQUENCY_SOURCES)
-                        .pathogenicitySources(PS_NOT_SPLICING) // all the pathogenicity sources except SPLICING & TEST
-                        // adds an mask for removing non-coding variants
-                        .addQualityFilter(200)
-                        .addVariantEffectFilter(NON_CODING_EFFECTS)
-                        .addFailedVariantFilter()
-                        // frequency filter max will be automatically derived from the inheritance mode options
-                        .addFrequencyFilter()
-                        .addPathogenicityFilter(true)
-                        .addInheritanceFilter()
-                        .addOmimPrioritiser()
-                        .addHiPhivePrioritiser()
-                        .build();
 
-                AnalysisResults splicingAgnosticResults = exomiser.run(splicingAgnosticAnalysis);
+    /**
+     * Sort the cases by their estimated cost, the most expensive first. The lines of the ranks file keep the order of
+     * the phenopackets.
+     * <p>
+     * The phenopackets are read in parallel and kept by the cases, the parse stage does not read them again.
+     * </p>
+     *
+     * @return the estimates
+     */
+    private CaseCostModel.Estimates scheduleLongestFirst(List<SimulationCase> cases) {
+        cases.parallelStream().forEach(simulationCase -> {
+            try {
+                simulationCase.phenopacket = Utils.readPhenopacket(simulationCase.phenopacketPath);
+            } catch (IOException e) {
+                // read again by the parse stage, which reports the failure
+                LOGGER.debug("Unable to read phenopacket '{}': {}", simulationCase.phenopacketPath, e.getMessage());
+            }
+        });
+        CaseCostModel.Estimates estimates = new CaseCostModel(caseTimings).estimate(
+                cases.stream().map(simulationCase -> simulationCase.phenopacketPath.toFile().getName()).collect(Collectors.toList()),
+                cases.stream().map(simulationCase -> simulationCase.phenopacket).collect(Collectors.toList()));
+        List<SimulationCase> sorted = new ArrayList<>(cases.size());
+        for (int i : CaseCostModel.longestFirstOrder(estimates.getCosts())) {
+            SimulationCase simulationCase = cases.get(i);
+            simulationCase.estimatedCost = estimates.getCosts()[i];
+            sorted.add(simulationCase);
+        }
+        cases.clear();
+        cases.addAll(sorted);
+
+        double predicted = CaseCostModel.predictMakespan(estimates.getCosts(), threads);
+        if (estimates.isInMillis()) {
+            LOGGER.info("Scheduling {} case(s) longest-first, {} timed by '{}'. Predicted makespan of the analyses: {}s",
+                    cases.size(), estimates.getTimedCount(), caseCostsPath, String.format("%.1f", predicted / 1000));
+        } else {
+            LOGGER.info("Scheduling {} case(s) longest-first by their phenopackets. Predicted makespan of the analyses: {} cost units",
+                    cases.size(), String.format("%.1f", predicted));
+        }
+        return estimates;
+    }
+
+    /**
+     * Log the predicted and the actual makespan of the analyses. Costs estimated without the times of a previous run
+     * are converted to time by the ratio of the actual analysis time and the estimated cost of the analysed cases.
+     */
+    private void logMakespan(CaseCostModel.Estimates estimates) {
+        if (analysedMillis.sum() == 0) {
+            return;
+        }
+        double predicted = CaseCostModel.predictMakespan(estimates.getCosts(), threads);
+        if (!estimates.isInMillis()) {
+            predicted *= analysedMillis.sum() / analysedEstimatedCost.sum();
+        }
+        double actual = (lastAnalysisEnd.get() - firstAnalysisStart.get()) / 1e6;
+        // no schedule finishes sooner than the average load of the threads
+        double lowerBound = (double) analysedMillis.sum() / threads;
+        LOGGER.info("Makespan of the analyses: predicted {}s, actual {}s, lower bound {}s",
+                String.format("%.1f", predicted / 1000), String.format("%.1f", actual / 1000), String.format("%.1f", lowerBound / 1000));
+    }
+
+    /**
+     * Log hit rates of the Exomiser caches. The background variants are shared by all the cases, hence a low hit rate
+     * suggests the cache is smaller than the template.
+     */
+    private void logCacheStatistics() {
+        CacheManager cacheManager = cacheManagerProvider.getIfAvailable();
+        if (cacheManager == null || cacheManager.getCacheNames().isEmpty()) {
+            LOGGER.info("Exomiser caching is disabled, set 'spring.cache.type=caffeine' to reuse the lookups of the template variants");
+            return;
+        }
+        for (String name : cacheManager.getCacheNames()) {
+            Cache cache = cacheManager.getCache(name);
+            Object nativeCache = cache == null ? null : cache.getNativeCache();
+            if (nativeCache instanceof com.github.benmanes.caffeine.cache.Cache) {
+                com.github.benmanes.caffeine.cache.Cache<?, ?> caffeineCache = (com.github.benmanes.caffeine.cache.Cache<?, ?>) nativeCache;
+                LOGGER.info("Cache '{}': {} entries, {}", name, caffeineCache.estimatedSize(), caffeineCache.stats());
+            }
+        }
+    }
+
+    /**
+     * @return description of the configuration the ranks depend on, a run can be resumed only with the same one
+     */
+    private String describeConfiguration() {
+        StringBuilder description = new StringBuilder();
+        if (simulatorName.equals("pooled")) {
+            description.append("pool=").append(templatePoolPath.toAbsolutePath()).append(",seed=").append(templateSeed);
+        } else {
+            description.append("template=").append(templateVcfPath.toAbsolutePath());
+        }
+        if (regionsPath != null) {
+            description.append(";regions=").append(regionsPath.toAbsolutePath())
+                    .append(",genes=").append(new TreeSet<>(regionGenes))
+                    .append(",flank=").append(regionFlank);
+        }
+        for (AnalysisConfiguration configuration : analysisMatrix) {
+            description.append(";").append(configuration.getName())
+                    .append("=").append(configuration.getColumn())
+                    .append(",").append(configuration.getPathogenicitySources())
+                    .append(",").append(configuration.getFrequencySources());
+        }
+        return description.toString();
+    }
 
-                OutputSettings agnosticSettings = OutputSettings.builder()
+    /**
+     * Delete the per-case output directories left incomplete by an interrupted run.
+     */
+    private void deletePartialOutputs() throws IOException {
+        try (DirectoryStream<Path> partials = Files.newDirectoryStream(outputPath, "*" + PARTIAL_SUFFIX)) {
+            for (Path partial : partials) {
+                LOGGER.info("Deleting incomplete outputs '{}'", partial);
+                deleteRecursively(partial);
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    private static void logQueueDepths(List<PipelineStage<SimulationCase, ?>> stages) {
+        LOGGER.info("Queue depths: {}", stages.stream()
+                .map(stage -> stage.getName() + "=" + stage.getQueueDepth())
+                .collect(Collectors.joining(", ")));
+    }
+
+    private void releaseVcf(ScratchDirectory scratchDirectory, SimulationCase simulationCase) {
+        if (simulationCase.vcfPath == null) {
+            return;
+        }
+        if (vcfCache != null) {
+            vcfCache.release(simulationCase.vcfPath);
+        }
+        try {
+            scratchDirectory.release(simulationCase.vcfPath);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to delete simulated VCF file '{}': {}", simulationCase.vcfPath, e.getMessage());
+        }
+        simulationCase.vcfPath = null;
+    }
+
+    /**
+     * Let the next case in once the case is finished or failed.
+     */
+    private void releaseAdmission(SimulationCase simulationCase) {
+        if (simulationCase.admitted) {
+            admissionController.release();
+            simulationCase.admitted = false;
+        }
+    }
+
+    /**
+     * Read and check the phenopacket of the case, unless it was read by the scheduler.
+     *
+     * @return <code>false</code> if the phenopacket cannot be used for simulation
+     */
+    private static boolean parsePhenopacket(SimulationCase simulationCase) throws IOException {
+        Phenopacket pp = simulationCase.phenopacket;
+        if (pp == null) {
+            LOGGER.info("Reading phenopacket from '{}'", simulationCase.phenopacketPath);
+            pp = Utils.readPhenopacket(simulationCase.phenopacketPath);
+        }
+        if (pp.getSubject().getId().isEmpty()) {
+            LOGGER.error("Phenopacket subject's ID must not be empty. Unable to continue");
+            return false;
+        }
+
+        if (pp.getGenesCount() != 1) {
+            LOGGER.error("Phenopackets used for simulation MUST have exactly one gene");
+            return false;
+        }
+
+        if (pp.getDiseasesCount() != 1) {
+            LOGGER.error("Phenopackets used for simulation MUST have exactly one disease");
+            return false;
+        }
+        simulationCase.phenopacket = pp;
+        return true;
+    }
+
+    /**
+     * Simulate VCF files for the batch of cases.
+     */
+    private static void simulate(VcfSimulator simulator, List<SimulationCase> cases,
+                                 PipelineStage.Sink<SimulationCase> sink) throws IOException, InterruptedException {
+        // -----------------------    CREATE THE SIMULATED VCF FILES    ------------------------
+        LOGGER.info("Creating {} simulated VCF file(s)", cases.size());
+        List<Path> vcfPaths = simulator.simulateVcfsWithPhenopackets(cases.stream()
+                .map(simulationCase -> simulationCase.phenopacket)
+                .collect(Collectors.toList()));
+        for (int i = 0; i < cases.size(); i++) {
+            cases.get(i).vcfPath = vcfPaths.get(i);
+        }
+        for (SimulationCase simulationCase : cases) {
+            sink.put(simulationCase);
+        }
+    }
+
+    /**
+     * Write results of the analyses selected by `--write-outputs` and the line of the ranks file.
+     */
+    private void writeResults(SimulationCase simulationCase, ScratchDirectory scratchDirectory, RunJournal journal,
+                              OrderedResultCollector collector) throws IOException {
+        String delimiter = "\t";
+        String ppFileName = simulationCase.phenopacketPath.toFile().getName();
+        if (simulationCase.timedOut) {
+            // the simulated VCF file and the admission were released when the analyses were abandoned, the case is
+            // not journaled, hence it is run again by `--resume`
+            StringBuilder line = new StringBuilder(simulationCase.phenopacket.getId());
+            for (int i = 0; i < analysisMatrix.size(); i++) {
+                line.append(delimiter).append(TIMEOUT);
+            }
+            line.append(delimiter).append(Utils.getSplicingPathomechanism(simulationCase.phenopacket.getVariantsList()));
+            collector.add(simulationCase.index, line.toString());
+            return;
+        }
+        SimpleResults sr = evaluateResults(simulationCase.phenopacket, simulationCase.results);
+        try {
+            // Exomiser results for given phenopacket will be written here, the directory is renamed once complete
+            Path partialOutputDir = this.outputPath.resolve(ppFileName + PARTIAL_SUFFIX);
+            boolean written = false;
+            for (int i = 0; i < analysisMatrix.size(); i++) {
+                if (!shouldWriteOutputs(sr.getRanks().get(i))) {
+                    continue;
+                }
+                if (!written) {
+                    deleteRecursively(partialOutputDir);
+                    Files.createDirectories(partialOutputDir);
+                    written = true;
+                }
+                OutputSettings settings = OutputSettings.builder()
                         .outputFormats(OUTPUT_FORMATS)
-                        .outputPrefix(phenopacketOutputDir.resolve(ppFileName + "_NO").toString())
+                        .outputPrefix(partialOutputDir.resolve(ppFileName + "_" + analysisMatrix.get(i).getName()).toString())
                         .build();
-                AnalysisResultsWriter.writeToFile(splicingAgnosticAnalysis, splicingAgnosticResults, agnosticSettings);
-
-                //
-                // Then run the analysis with splicing pathogenicity scores
-                LOGGER.info("\n\n\u2708\u2708\u2708\u2708\u2708\u2708\u2708\u2708\u2708\u2708\u2708\u2708\u2708\u2708\u2708\u2708" +
-                        "   Creating splicing-aware analysis   " +
-                        "\u2600\u2600\u2600\u2600\u2600\u2600\u2600\u2600\u2600\u2600\u2600\u2600\u2600\u2600\u2600\u2600\n");
-                Analysis splicingAwareAnalysis = exomiser.getAnalysisBuilder()
-                        .genomeAssembly(GenomeAssembly.HG19)
-                        .vcfPath(vcfPath)
-                        .probandSampleName(sampleName)
-                        .hpoIds(phenotypesAsHpoStrings)
-                        .analysisMode(AnalysisMode.PASS_ONLY)
-                        .inheritanceModes(INHERITANCE_MODE_OPTIONS)
-                        .frequencySources(FrequencySource.ALL_EXTERNAL_FREQ_SOURCES)
-                        .pathogenicitySources(PS_W_SPLICING) // all the pathogenicity sources except TEST
-                        // adds an mask for removing non-coding variants
-                        .addQualityFilter(200)
-                        .addVariantEffectFilter(NON_CODING_EFFECTS)
-                        .addFailedVariantFilter()
-                        // frequency filter max will be automatically derived from the inheritance mode options
-                        .addFrequencyFilter()
-                        .addPathogenicityFilter(true)
-                        .addInheritanceFilter()
-                        .addOmimPrioritiser()
+                AnalysisResultsWriter.writeToFile(simulationCase.analyses.get(i), simulationCase.results.get(i), settings);
+            }
+            if (written) {
+                // replace the outputs left by an interrupted run
+                Path phenopacketOutputDir = this.outputPath.resolve(ppFileName);
+                deleteRecursively(phenopacketOutputDir);
+                Files.move(partialOutputDir, phenopacketOutputDir, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            // the results are written, the simulated VCF file is not needed anymore
+            releaseVcf(scratchDirectory, simulationCase);
+            releaseAdmission(simulationCase);
+        }
+
+        //
+        // write ranks/evaluation of the analyses
+        StringBuilder line = new StringBuilder(sr.getCaseName());
+        for (Integer rank : sr.getRanks()) {
+            line.append(delimiter).append(rank);
+        }
+        line.append(delimiter).append(sr.getSplicingPathomechanism());
+        journal.record(ppFileName, simulationCase.analysisMillis, line.toString());
+        collector.add(simulationCase.index, line.toString());
+    }
+
+    /**
+     * @param rank rank of the causal gene in the analysis, <code>-1</code> if the gene was not ranked
+     * @return <code>true</code> if the Exomiser outputs of the analysis are written according to `--write-outputs`
+     */
+    private boolean shouldWriteOutputs(int rank) {
+        switch (writeOutputs) {
+            case "none":
+                return false;
+            case "failures":
+                return rank < 1 || rank > failureRank;
+            case "all":
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Run the analyses of all the configurations of the matrix, the results are written by the next stage. The case is
+     * marked as timed out if the analyses exceed `--case-timeout`. The abandoned analyses are cancelled, the simulated
+     * VCF file and the admission of the case are released right away, see {@link AnalysisBudget}.
+     *
+     * @return the case with the analyses and their results
+     */
+    private SimulationCase runAnalyses(SimulationCase simulationCase, ScratchDirectory scratchDirectory) throws Exception {
+        if (admissionController != null) {
+            // released once the results are written
+            admissionController.acquire();
+            simulationCase.admitted = true;
+        }
+        long start = System.nanoTime();
+        firstAnalysisStart.accumulateAndGet(start, Math::min);
+        if (budget == null) {
+            analyse(simulationCase);
+        } else {
+            // the abandoned analyses fill the lists of their own copy, the case keeps no partial results
+            SimulationCase analysed = new SimulationCase(simulationCase.index, simulationCase.phenopacketPath);
+            analysed.phenopacket = simulationCase.phenopacket;
+            analysed.vcfPath = simulationCase.vcfPath;
+            try {
+                budget.run(() -> {
+                    analyse(analysed);
+                    return null;
+                });
+            } catch (TimeoutException e) {
+                simulationCase.timedOut = true;
+                LOGGER.error("Analyses of '{}' exceeded the {}s budget, recording the case as {}",
+                        simulationCase.phenopacketPath, caseTimeoutSeconds, TIMEOUT);
+                releaseVcf(scratchDirectory, simulationCase);
+                releaseAdmission(simulationCase);
+                return simulationCase;
+            }
+            simulationCase.analyses.addAll(analysed.analyses);
+            simulationCase.results.addAll(analysed.results);
+        }
+        recordAnalysisTime(simulationCase, start);
+        return simulationCase;
+    }
+
+    private void recordAnalysisTime(SimulationCase simulationCase, long start) {
+        long end = System.nanoTime();
+        lastAnalysisEnd.accumulateAndGet(end, Math::max);
+        simulationCase.analysisMillis = TimeUnit.NANOSECONDS.toMillis(end - start);
+        analysedMillis.add(simulationCase.analysisMillis);
+        analysedEstimatedCost.add(simulationCase.estimatedCost);
+    }
+
+    private void analyse(SimulationCase simulationCase) {
+        Phenopacket pp = simulationCase.phenopacket;
+        String sampleName = pp.getSubject().getId().replaceAll("\\s+", "_");
+
+        List<String> phenotypesAsHpoStrings = Utils.getPresentPhenotypesAsHpoStrings(pp);
+
+        for (AnalysisConfiguration configuration : analysisMatrix) {
+            LOGGER.info("\n\n\u266B\u266C\u266A\u266B\u266C\u266A\u266B\u266C\u266A\u266B\u266C\u266A" +
+                    "   Creating '{}' analysis   " +
+                    "\u266B\u266C\u266A\u266B\u266C\u266A\u266B\u266C\u266A\u266B\u266C\u266A\n", configuration.getName());
+            Analysis analysis = createAnalysisBuilder(configuration, simulationCase.vcfPath, sampleName, phenotypesAsHpoStrings)
+                    .addAnalysisStep(createHiPhivePrioritiser())
+                    .build();
+            AnalysisResults results = exomiser.run(analysis);
+            if (verifyPhenotypeCache) {
+                Analysis uncachedAnalysis = createAnalysisBuilder(configuration, simulationCase.vcfPath, sampleName, phenotypesAsHpoStrings)
                         .addHiPhivePrioritiser()
                         .build();
+                String difference = PhenotypeScoreCache.diffRankings(exomiser.run(uncachedAnalysis), results);
+                if (difference != null) {
+                    cacheMismatches.incrementAndGet();
+                    LOGGER.error("'{}' analysis of '{}' with the phenotype score cache differs from the analysis without it at {}",
+                            configuration.getName(), simulationCase.phenopacketPath, difference);
+                }
+            }
+            simulationCase.analyses.add(analysis);
+            simulationCase.results.add(results);
+        }
+    }
 
-                AnalysisResults splicingAwareResults = exomiser.run(splicingAwareAnalysis);
+    /**
+     * @return HiPhive prioritiser, sharing the results through the phenotype score cache if enabled
+     */
+    private Prioritiser<? extends PriorityResult> createHiPhivePrioritiser() {
+        Prioritiser<? extends PriorityResult> prioritiser = priorityFactory.makeHiPhivePrioritiser(HiPhiveOptions.DEFAULT);
+        return phenotypeScoreCache == null ? prioritiser : phenotypeScoreCache.wrap(prioritiser);
+    }
 
-                OutputSettings awareSettings = OutputSettings.builder()
-                        .outputFormats(OUTPUT_FORMATS)
-                        .outputPrefix(phenopacketOutputDir.resolve(ppFileName + "_YES").toString())
-                        .build();
-                AnalysisResultsWriter.writeToFile(splicingAwareAnalysis, splicingAwareResults, awareSettings);
+    /**
+     * @return builder of the analysis of the configuration with all the steps but the HiPhive prioritiser
+     */
+    private AnalysisBuilder createAnalysisBuilder(AnalysisConfiguration configuration, Path vcfPath, String sampleName,
+                                                  List<String> phenotypesAsHpoStrings) {
+        return exomiser.getAnalysisBuilder()
+                .genomeAssembly(GenomeAssembly.HG19)
+                .vcfPath(vcfPath)
+                .probandSampleName(sampleName)
+                .hpoIds(phenotypesAsHpoStrings)
+                .analysisMode(AnalysisMode.PASS_ONLY)
+                .inheritanceModes(INHERITANCE_MODE_OPTIONS)
+                .frequencySources(configuration.getFrequencySources())
+                .pathogenicitySources(configuration.getPathogenicitySources())
+                // adds an mask for removing non-coding variants
+                .addQualityFilter(MIN_QUALITY)
+                .addVariantEffectFilter(NON_CODING_EFFECTS)
+                .addFailedVariantFilter()
+                // frequency filter max will be automatically derived from the inheritance mode options
+                .addFrequencyFilter()
+                .addPathogenicityFilter(true)
+                .addInheritanceFilter()
+                .addOmimPrioritiser();
+    }
 
+    /**
+     * @return {@link VcfSimulator} selected by the `--simulator` argument
+     */
+    private VcfSimulator createSimulator(ScratchDirectory scratchDirectory) throws IOException {
+        RegionSet regions = loadRegions();
+        VcfSimulator simulator = createTemplateSimulator(scratchDirectory, regions);
+        if (vcfCacheDirectory == null) {
+            return simulator;
+        }
+        return CachingVcfSimulator.builder()
+                .setDelegate(simulator)
+                .setScratchDirectory(scratchDirectory)
+                .setTemplateVcfPath(simulatorName.equals("pooled") ? templatePoolPath : templateVcfPath)
+                .setCacheDirectory(vcfCacheDirectory)
+                .setMaxCacheSize(vcfCacheSize)
+                .setOutputSuffix(compressVcf ? ".vcf.gz" : ".vcf")
+                .setParameters(simulatorName.equals("pooled")
+                        ? "seed=" + templateSeed
+                        : regions == null ? "" : "regions=" + regions)
+                .build();
+    }
 
-                //
-                // write ranks/evaluation of the analyses
-                SimpleResults sr = evaluateResults(pp, splicingAgnosticResults, splicingAwareResults);
-                String resultLine = sr.getCaseName() + delimiter
-                        + sr.getRankWithSplicing() + delimiter
-                        + sr.getRankNormal() + delimiter
-                        + sr.getSplicingPathomechanism();
-                resultWriter.write(resultLine);
-                resultWriter.newLine();
-                resultWriter.flush();
-            }
+    /**
+     * @return the pool selected by the `--template-pool` argument, built from the `--template-pool-vcfs` directory if
+     * the pool file does not exist yet
+     */
+    private TemplatePool openTemplatePool() throws IOException {
+        if (Files.isRegularFile(templatePoolPath)) {
+            return TemplatePool.open(templatePoolPath);
+        }
+        List<Path> templates;
+        try (Stream<Path> files = Files.list(templatePoolVcfDirectory)) {
+            templates = files.filter(file -> file.toString().endsWith(".vcf") || file.toString().endsWith(".vcf.gz"))
+                    .sorted()
+                    .collect(Collectors.toList());
         }
+        LOGGER.info("Building pool '{}' of {} templates from '{}'", templatePoolPath, templates.size(), templatePoolVcfDirectory);
+        return TemplatePool.build(templates, templatePoolPath);
+    }
 
-        LOGGER.info("くまくま━━━━━━ヽ（ ・(ｪ)・ ）ノ━━━━━━ !!!");
-        LOGGER.info("                 Done!               ");
+    /**
+     * @return regions selected by the `--regions` and `--region-genes` arguments, <code>null</code> if the template
+     * records are not restricted
+     */
+    private RegionSet loadRegions() throws IOException {
+        if (regionsPath == null) {
+            return null;
+        }
+        List<GenomicRegion> regions = GenomicRegion.readBedFile(regionsPath);
+        if (!regionGenes.isEmpty()) {
+            regions = regions.stream()
+                    .filter(region -> regionGenes.contains(region.getName()))
+                    .collect(Collectors.toList());
+            Set<String> found = regions.stream().map(GenomicRegion::getName).collect(Collectors.toSet());
+            for (String gene : regionGenes) {
+                if (!found.contains(gene)) {
+                    LOGGER.warn("No region named '{}' in '{}'", gene, regionsPath);
+                }
+            }
+        }
+        RegionSet regionSet = RegionSet.of(regions, regionFlank);
+        LOGGER.info("Restricting template to {} regions from '{}' with {} bp flank", regionSet.size(), regionsPath, regionFlank);
+        return regionSet;
     }
 
+    private VcfSimulator createTemplateSimulator(ScratchDirectory scratchDirectory, RegionSet regions) throws IOException {
+        switch (simulatorName) {
+            case "in-memory":
+                // the template is parsed once and shared by all the simulated cases
+                return new InMemoryVcfSimulator(VcfTemplate.load(templateVcfPath), scratchDirectory);
+            case "pre-rendered":
+                // the template records are encoded once, only the injected variants are encoded for each case
+                return PreRenderedVcfSimulator.prerender(templateVcfPath, scratchDirectory, sortMaxRecordsInRam);
+            case "pooled":
+                // each case is simulated on a template drawn from the memory-mapped pool
+                return new PooledVcfSimulator(openTemplatePool(), templateSeed, scratchDirectory);
+            case "contig-parallel":
+                // the contigs of indexed template are processed in parallel
+                return new ContigParallelVcfSimulator(templateVcfPath, scratchDirectory, simulationThreads);
+            case "single":
+            default:
+                return SingleVcfSimulator.builder()
+                        .setTemplateVcfPath(templateVcfPath)
+                        .setCompressOutput(compressVcf)
+                        .setScratchDirectory(scratchDirectory)
+                        .setMaxRecordsInRam(sortMaxRecordsInRam)
+                        .setRegions(regions)
+                        .build();
+        }
+    }
 
     private boolean parseCliArgs(ApplicationArguments args) {
         // Phenopackets
@@ -319,11 +1083,302 @@ public class SimulateCaseAndRunExomiserCommand implements ApplicationRunner {
 
 
         //
-        if (!args.containsOption("vcf")) {
-            LOGGER.error("Missing 'vcf' argument");
+        // not needed by the 'pooled' simulator
+        if (args.containsOption("vcf")) {
+            templateVcfPath = Paths.get(args.getOptionValues("vcf").get(0));
+        }
+
+        // Simulator implementation
+        if (args.containsOption("simulator")) {
+            simulatorName = args.getOptionValues("simulator").get(0);
+            if (!Arrays.asList("single", "in-memory", "pre-rendered", "contig-parallel", "pooled").contains(simulatorName)) {
+                LOGGER.error("Unknown simulator '{}'. Use one of 'single', 'in-memory', 'pre-rendered', 'contig-parallel', 'pooled'", simulatorName);
+                return false;
+            }
+        }
+        if (simulatorName.equals("pooled")) {
+            if (!args.containsOption("template-pool")) {
+                LOGGER.error("Missing '--template-pool' argument for the pool file of the 'pooled' simulator");
+                return false;
+            }
+            templatePoolPath = Paths.get(args.getOptionValues("template-pool").get(0));
+            if (args.containsOption("template-pool-vcfs")) {
+                templatePoolVcfDirectory = Paths.get(args.getOptionValues("template-pool-vcfs").get(0));
+            }
+            if (!Files.isRegularFile(templatePoolPath) && (templatePoolVcfDirectory == null || !Files.isDirectory(templatePoolVcfDirectory))) {
+                LOGGER.error("Pool file '{}' does not exist, use '--template-pool-vcfs' to point to directory with the template VCF files to build it from", templatePoolPath);
+                return false;
+            }
+            if (args.containsOption("template-seed")) {
+                try {
+                    templateSeed = Long.parseLong(args.getOptionValues("template-seed").get(0));
+                } catch (NumberFormatException e) {
+                    LOGGER.error("Invalid '--template-seed' argument: {}", e.getMessage());
+                    return false;
+                }
+            }
+        } else if (templateVcfPath == null) {
+            LOGGER.error("Missing '--vcf' argument for template VCF file path");
+            return false;
+        }
+
+        usePrefilteredTemplate = !args.containsOption("ignore-prefiltered-template");
+
+        compressVcf = args.containsOption("compress-vcf");
+        if (compressVcf && !simulatorName.equals("single")) {
+            LOGGER.error("'--compress-vcf' is supported only by the 'single' simulator");
             return false;
         }
-        templateVcfPath = Paths.get(args.getOptionValues("vcf").get(0));
+
+        // Persistent cache of the simulated VCF files
+        if (args.containsOption("vcf-cache-dir")) {
+            vcfCacheDirectory = Paths.get(args.getOptionValues("vcf-cache-dir").get(0));
+        }
+        if (args.containsOption("vcf-cache-size")) {
+            try {
+                vcfCacheSize = CachingVcfSimulator.parseSize(args.getOptionValues("vcf-cache-size").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.error("Invalid '--vcf-cache-size' argument: {}", e.getMessage());
+                return false;
+            }
+        }
+
+        // Scratch directory for the simulated VCF files
+        if (args.containsOption("scratch-dir")) {
+            scratchDirectoryParent = Paths.get(args.getOptionValues("scratch-dir").get(0));
+        }
+
+        // Memory budget for sorting unsorted template
+        if (args.containsOption("sort-max-records-in-ram")) {
+            try {
+                sortMaxRecordsInRam = Integer.parseInt(args.getOptionValues("sort-max-records-in-ram").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.error("Invalid '--sort-max-records-in-ram' argument: {}", e.getMessage());
+                return false;
+            }
+        }
+
+        // Threads used by the simulator
+        if (args.containsOption("simulation-threads")) {
+            try {
+                simulationThreads = Integer.parseInt(args.getOptionValues("simulation-threads").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.error("Invalid '--simulation-threads' argument: {}", e.getMessage());
+                return false;
+            }
+            if (simulationThreads < 1) {
+                LOGGER.error("'--simulation-threads' must be a positive number");
+                return false;
+            }
+        }
+
+        // Number of VCF files simulated in a single pass over the template
+        if (args.containsOption("simulation-batch-size")) {
+            try {
+                simulationBatchSize = Integer.parseInt(args.getOptionValues("simulation-batch-size").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.error("Invalid '--simulation-batch-size' argument: {}", e.getMessage());
+                return false;
+            }
+            if (simulationBatchSize < 1) {
+                LOGGER.error("'--simulation-batch-size' must be a positive number");
+                return false;
+            }
+        }
+
+        // Regions the template records are restricted to
+        if (args.containsOption("regions")) {
+            regionsPath = Paths.get(args.getOptionValues("regions").get(0));
+            if (!simulatorName.equals("single")) {
+                LOGGER.error("'--regions' is supported only by the 'single' simulator");
+                return false;
+            }
+        }
+        if (args.containsOption("region-genes")) {
+            if (regionsPath == null) {
+                LOGGER.error("'--region-genes' requires '--regions' BED file with gene symbols in the name column");
+                return false;
+            }
+            for (String genes : args.getOptionValues("region-genes")) {
+                for (String gene : genes.split(",")) {
+                    if (!gene.trim().isEmpty()) {
+                        regionGenes.add(gene.trim());
+                    }
+                }
+            }
+        }
+        if (args.containsOption("region-flank")) {
+            try {
+                regionFlank = Integer.parseInt(args.getOptionValues("region-flank").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.error("Invalid '--region-flank' argument: {}", e.getMessage());
+                return false;
+            }
+            if (regionFlank < 0) {
+                LOGGER.error("'--region-flank' must not be negative");
+                return false;
+            }
+        }
+
+        // Number of cases analysed concurrently
+        if (args.containsOption("threads")) {
+            try {
+                threads = Integer.parseInt(args.getOptionValues("threads").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.error("Invalid '--threads' argument: {}", e.getMessage());
+                return false;
+            }
+            if (threads < 1) {
+                LOGGER.error("'--threads' must be a positive number");
+                return false;
+            }
+        }
+
+        // Threads of the simulation and writing stages
+        if (args.containsOption("simulation-workers")) {
+            try {
+                simulationWorkers = Integer.parseInt(args.getOptionValues("simulation-workers").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.error("Invalid '--simulation-workers' argument: {}", e.getMessage());
+                return false;
+            }
+            if (simulationWorkers < 1) {
+                LOGGER.error("'--simulation-workers' must be a positive number");
+                return false;
+            }
+        }
+        if (args.containsOption("writer-workers")) {
+            try {
+                writerWorkers = Integer.parseInt(args.getOptionValues("writer-workers").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.error("Invalid '--writer-workers' argument: {}", e.getMessage());
+                return false;
+            }
+            if (writerWorkers < 1) {
+                LOGGER.error("'--writer-workers' must be a positive number");
+                return false;
+            }
+        }
+
+        // Wall-clock budget of the analyses of a case
+        if (args.containsOption("case-timeout")) {
+            try {
+                caseTimeoutSeconds = Long.parseLong(args.getOptionValues("case-timeout").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.error("Invalid '--case-timeout' argument: {}", e.getMessage());
+                return false;
+            }
+            if (caseTimeoutSeconds < 0) {
+                LOGGER.error("'--case-timeout' must not be negative");
+                return false;
+            }
+        }
+
+        // Cases in flight limited by the heap occupancy
+        if (args.containsOption("heap-target")) {
+            try {
+                heapTarget = Integer.parseInt(args.getOptionValues("heap-target").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.error("Invalid '--heap-target' argument: {}", e.getMessage());
+                return false;
+            }
+            if (heapTarget < 1 || heapTarget > 99) {
+                LOGGER.error("'--heap-target' must be a percentage between 1 and 99");
+                return false;
+            }
+        }
+
+        // HiPhive results shared among the analyses with the same HPO terms
+        if (args.containsOption("phenotype-cache-size")) {
+            try {
+                phenotypeCacheSize = Long.parseLong(args.getOptionValues("phenotype-cache-size").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.error("Invalid '--phenotype-cache-size' argument: {}", e.getMessage());
+                return false;
+            }
+            if (phenotypeCacheSize < 0) {
+                LOGGER.error("'--phenotype-cache-size' must not be negative");
+                return false;
+            }
+        }
+        verifyPhenotypeCache = args.containsOption("verify-phenotype-cache");
+        if (verifyPhenotypeCache && phenotypeCacheSize == 0) {
+            LOGGER.error("'--verify-phenotype-cache' requires '--phenotype-cache-size'");
+            return false;
+        }
+
+        // Exomiser configurations run for each case
+        if (args.containsOption("analysis-matrix")) {
+            Path matrixPath = Paths.get(args.getOptionValues("analysis-matrix").get(0));
+            try {
+                analysisMatrix = AnalysisConfiguration.readMatrix(matrixPath, FREQUENCY_SOURCES);
+            } catch (IOException | IllegalArgumentException e) {
+                LOGGER.error("Invalid '--analysis-matrix' file '{}': {}", matrixPath, e.getMessage());
+                return false;
+            }
+            LOGGER.info("Running {} analyses per case: {}", analysisMatrix.size(), analysisMatrix);
+        }
+
+        // Exomiser outputs written in addition to the ranks file
+        if (args.containsOption("write-outputs")) {
+            writeOutputs = args.getOptionValues("write-outputs").get(0);
+            if (!Arrays.asList("all", "failures", "none").contains(writeOutputs)) {
+                LOGGER.error("Unknown '--write-outputs' value '{}'. Use one of 'all', 'failures', 'none'", writeOutputs);
+                return false;
+            }
+        }
+        if (args.containsOption("failure-rank")) {
+            try {
+                failureRank = Integer.parseInt(args.getOptionValues("failure-rank").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.error("Invalid '--failure-rank' argument: {}", e.getMessage());
+                return false;
+            }
+            if (failureRank < 1) {
+                LOGGER.error("'--failure-rank' must be a positive number");
+                return false;
+            }
+        }
+
+        resume = args.containsOption("resume");
+
+        // Order the cases are started in
+        if (args.containsOption("schedule")) {
+            schedule = args.getOptionValues("schedule").get(0);
+            if (!Arrays.asList("input", "longest-first").contains(schedule)) {
+                LOGGER.error("Unknown '--schedule' value '{}'. Use one of 'input', 'longest-first'", schedule);
+                return false;
+            }
+        }
+        if (args.containsOption("case-costs")) {
+            caseCostsPath = Paths.get(args.getOptionValues("case-costs").get(0));
+            if (!Files.isRegularFile(caseCostsPath)) {
+                LOGGER.error("Argument '--case-costs' does not point to a file");
+                return false;
+            }
+            if (schedule.equals("input")) {
+                LOGGER.error("'--case-costs' requires '--schedule=longest-first'");
+                return false;
+            }
+            try {
+                caseTimings = RunJournal.readTimings(caseCostsPath);
+            } catch (IOException | IllegalArgumentException e) {
+                LOGGER.error("Invalid '--case-costs' journal '{}': {}", caseCostsPath, e.getMessage());
+                return false;
+            }
+        }
+
+        // Slice of the phenopackets run by this process
+        try {
+            int[] shard = Utils.parseShardOptions(args.getOptionValues("shard-index"), args.getOptionValues("shard-count"));
+            shardIndex = shard[0];
+            shardCount = shard[1];
+        } catch (IllegalArgumentException e) {
+            LOGGER.error(e.getMessage());
+            return false;
+        }
+
+        Utils.retainShard(phenopacketPaths, path -> path.getFileName().toString(), shardIndex, shardCount);
 
         // Output directory path - where to write all the results
         if (!args.containsOption("output-exomiser")) {
@@ -335,6 +1390,55 @@ public class SimulateCaseAndRunExomiserCommand implements ApplicationRunner {
         return true;
     }
 
+    /**
+     * State of a case passed through the stages of the pipeline.
+     */
+    private static class SimulationCase {
+
+        /**
+         * Position of the case in the ranks file.
+         */
+        private final int index;
+
+        private final Path phenopacketPath;
+
+        /**
+         * Phenopacket read by the longest-first scheduler or by the parse stage.
+         */
+        private Phenopacket phenopacket;
+
+        private Path vcfPath;
+
+        /**
+         * Analyses and their results in the order of the analysis matrix.
+         */
+        private final List<Analysis> analyses = new ArrayList<>();
+
+        private final List<AnalysisResults> results = new ArrayList<>();
+
+        /**
+         * Estimated cost of the analyses, see {@link CaseCostModel}.
+         */
+        private double estimatedCost;
+
+        private long analysisMillis;
+
+        /**
+         * <code>true</code> if the case was admitted by the {@link HeapAdmissionController} and is in flight.
+         */
+        private boolean admitted;
+
+        /**
+         * <code>true</code> if the analyses exceeded `--case-timeout`, the case has no results.
+         */
+        private boolean timedOut;
+
+        private SimulationCase(int index, Path phenopacketPath) {
+            this.index = index;
+            this.phenopacketPath = phenopacketPath;
+        }
+    }
+
     private static class SimpleResults {
 
         /**
@@ -348,9 +1452,9 @@ public class SimulateCaseAndRunExomiserCommand implements ApplicationRunner {
         private final String geneSymbol;
 
         /**
-         * Rank of the causal gene created by either with splicing aware exomiser analysis or splicing agnostic analysis.
+         * Ranks of the causal gene created by the analyses in the order of the analysis matrix.
          */
-        private final int rankWithSplicing, rankNormal;
+        private final List<Integer> ranks;
 
         /**
          * Background information about the splicing variant, e.g. `splicing|3ss|disrupted`
@@ -360,8 +1464,7 @@ public class SimulateCaseAndRunExomiserCommand implements ApplicationRunner {
         private SimpleResults(Builder builder) {
             caseName = builder.caseName;
             geneSymbol = builder.geneSymbol;
-            rankWithSplicing = builder.splicingAwareRank;
-            rankNormal = builder.splicingAgnosticRank;
+            ranks = builder.ranks;
             splicingPathomechanism = builder.splicingPathomechanism;
         }
 
@@ -374,8 +1477,7 @@ public class SimulateCaseAndRunExomiserCommand implements ApplicationRunner {
             return "SimpleResults{" +
                     "caseName='" + caseName + '\'' +
                     ", geneSymbol='" + geneSymbol + '\'' +
-                    ", rankWithSplicing=" + rankWithSplicing +
-                    ", rankNormal=" + rankNormal +
+                    ", ranks=" + ranks +
                     ", splicingPathomechanism='" + splicingPathomechanism + '\'' +
                     '}';
         }
@@ -388,12 +1490,8 @@ public class SimulateCaseAndRunExomiserCommand implements ApplicationRunner {
             return geneSymbol;
         }
 
-        public int getRankWithSplicing() {
-            return rankWithSplicing;
-        }
-
-        public int getRankNormal() {
-            return rankNormal;
+        public List<Integer> getRanks() {
+            return ranks;
         }
 
         public String getSplicingPathomechanism() {
@@ -406,9 +1504,7 @@ public class SimulateCaseAndRunExomiserCommand implements ApplicationRunner {
 
             private String geneSymbol;
 
-            private int splicingAwareRank;
-
-            private int splicingAgnosticRank;
+            private List<Integer> ranks = Collections.emptyList();
 
             private String splicingPathomechanism;
 
@@ -425,13 +1521,8 @@ public class SimulateCaseAndRunExomiserCommand implements ApplicationRunner {
                 return this;
             }
 
-            public Builder setSplicingAwareRank(int splicingAwareRank) {
-                this.splicingAwareRank = splicingAwareRank;
-                return this;
-            }
-
-            public Builder setSplicingAgnosticRank(int splicingAgnosticRank) {
-                this.splicingAgnosticRank = splicingAgnosticRank;
+            public Builder setRanks(List<Integer> ranks) {
+                this.ranks = ranks;
                 return this;
             }
 
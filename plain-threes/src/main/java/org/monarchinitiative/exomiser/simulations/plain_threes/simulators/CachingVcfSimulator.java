@@ -0,0 +1,442 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.simulators;
+
+import htsjdk.tribble.Tribble;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.core.Variant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * {@link VcfSimulator} decorator that keeps the simulated VCF files in a persistent cache directory, so that the
+ * same case simulated against the same template in a later run is not simulated again.
+ * <p>
+ * The cache is content-addressed, the name of the cached file is SHA-256 digest of the template file content, of the
+ * phenopacket variants, of the sample ID and of the simulation parameters, if any. When the size of the cache exceeds
+ * the budget, the least recently used files are evicted. Last modified time of the file is used to track the usage.
+ * </p>
+ * <p>
+ * The files returned by the simulator are in use until they are {@link #release(Path) released} and are not evicted
+ * meanwhile. The usage is tracked only within the simulator, hence the cache directory must not be shared by
+ * concurrent runs: a run may evict a file that another run is still reading. Sequential runs may share the directory.
+ * </p>
+ */
+public class CachingVcfSimulator implements VcfSimulator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingVcfSimulator.class);
+
+    private final VcfSimulator delegate;
+
+    private final Path templateVcfPath;
+
+    private final Path cacheDirectory;
+
+    private final long maxCacheSize;
+
+    private final String outputSuffix;
+
+    private final String parameters;
+
+    private final ScratchDirectory scratchDirectory;
+
+    /**
+     * Digest of the template content, <code>null</code> until the first simulation.
+     */
+    private byte[] templateDigest;
+
+    /**
+     * Sum of the sizes of the cached files, <code>-1</code> until the cache directory is scanned for the first time.
+     */
+    private long cacheSize = -1;
+
+    private int hits, misses, evictions;
+
+    /**
+     * Number of the unreleased uses of the cached files returned by the simulator.
+     */
+    private final Map<Path, Integer> inUse = new HashMap<>();
+
+    private CachingVcfSimulator(Builder builder) {
+        this.delegate = Objects.requireNonNull(builder.delegate, "Delegate simulator must not be null");
+        this.templateVcfPath = Objects.requireNonNull(builder.templateVcfPath, "Template VCF path must not be null");
+        this.cacheDirectory = Objects.requireNonNull(builder.cacheDirectory, "Cache directory must not be null");
+        this.maxCacheSize = builder.maxCacheSize;
+        this.outputSuffix = builder.outputSuffix;
+        this.parameters = builder.parameters;
+        this.scratchDirectory = builder.scratchDirectory;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Parse size with optional <code>K</code>, <code>M</code>, <code>G</code> or <code>T</code> suffix, e.g.
+     * <code>500M</code>.
+     *
+     * @param value size to parse
+     * @return number of bytes
+     * @throws NumberFormatException if the <code>value</code> is not a valid size
+     */
+    public static long parseSize(String value) {
+        String trimmed = value.trim().toUpperCase();
+        if (trimmed.isEmpty()) {
+            throw new NumberFormatException("Size must not be empty");
+        }
+        int exponent = "BKMGT".indexOf(trimmed.charAt(trimmed.length() - 1));
+        long number = Long.parseLong(exponent < 0 ? trimmed : trimmed.substring(0, trimmed.length() - 1).trim());
+        if (number < 0) {
+            throw new NumberFormatException("Size '" + value + "' must not be negative");
+        }
+        if (exponent < 0) {
+            return number;
+        }
+        try {
+            return Math.multiplyExact(number, 1L << (10 * exponent));
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Size '" + value + "' is too large");
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] digest(Path path) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream is = Files.newInputStream(path)) {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static Path indexPath(Path vcfPath) {
+        return Tribble.tabixIndexFile(vcfPath.toFile()).toPath();
+    }
+
+    private static long sizeOf(Path path) {
+        try {
+            return Files.isRegularFile(path) ? Files.size(path) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * Copy the <code>source</code> into the cache directory and then atomically rename it to the <code>target</code>,
+     * so that other runs never see a partially written file.
+     */
+    private void copyIntoCache(Path source, Path target) throws IOException {
+        Path tmp = Files.createTempFile(cacheDirectory, target.getFileName().toString(), ".tmp");
+        try {
+            Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private synchronized byte[] templateDigest() throws IOException {
+        if (templateDigest == null) {
+            LOGGER.info("Computing digest of template VCF file '{}'", templateVcfPath);
+            templateDigest = digest(templateVcfPath);
+        }
+        return templateDigest;
+    }
+
+    private String makeKey(Phenopacket phenopacket) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(templateDigest());
+        for (Variant variant : phenopacket.getVariantsList()) {
+            byte[] bytes = variant.toByteArray();
+            digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.UTF_8));
+            digest.update(bytes);
+        }
+        digest.update(phenopacket.getSubject().getId().replaceAll("\\s+", "_").getBytes(StandardCharsets.UTF_8));
+        if (!parameters.isEmpty()) {
+            // the keys of simulations without parameters are kept the same as before the parameters were introduced
+            digest.update(parameters.getBytes(StandardCharsets.UTF_8));
+        }
+        return toHex(digest.digest());
+    }
+
+    private boolean isComplete(Path cached) {
+        return Files.isRegularFile(cached) && (!outputSuffix.endsWith(".gz") || Files.isRegularFile(indexPath(cached)));
+    }
+
+    private Path cachedPath(Phenopacket phenopacket) throws IOException {
+        return cacheDirectory.resolve(makeKey(phenopacket) + outputSuffix);
+    }
+
+    private void touch(Path cached) throws IOException {
+        LOGGER.info("Using cached VCF file '{}'", cached);
+        Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+        synchronized (this) {
+            hits++;
+            inUse.merge(cached, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Mark the cached file returned by the simulator as not used by the caller anymore, so that it can be evicted.
+     * Paths of other files are ignored.
+     *
+     * @param path path returned by the simulator
+     */
+    public synchronized void release(Path path) {
+        inUse.computeIfPresent(path, (p, uses) -> uses == 1 ? null : uses - 1);
+    }
+
+    /**
+     * Move the <code>simulated</code> VCF file along with its index into the cache.
+     */
+    private Path store(Path simulated, Path cached) throws IOException {
+        try {
+            // the index is cached first, hence the presence of the VCF file implies presence of its index
+            Path simulatedIndex = indexPath(simulated);
+            if (Files.isRegularFile(simulatedIndex)) {
+                copyIntoCache(simulatedIndex, indexPath(cached));
+            }
+            copyIntoCache(simulated, cached);
+        } finally {
+            // the scratch directory stops counting the file, files of other directories are deleted directly
+            scratchDirectory.release(simulated);
+            Files.deleteIfExists(indexPath(simulated));
+            Files.deleteIfExists(simulated);
+        }
+        added(cached);
+        return cached;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The cached file is shared by all the runs using the cache directory and must not be deleted by the caller.
+     * </p>
+     */
+    @Override
+    public Path simulateVcfWithPhenopacket(Phenopacket phenopacket) throws IOException {
+        Files.createDirectories(cacheDirectory);
+        Path cached = cachedPath(phenopacket);
+        if (isComplete(cached)) {
+            touch(cached);
+            return cached;
+        }
+        return store(delegate.simulateVcfWithPhenopacket(phenopacket), cached);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the phenopackets missing from the cache are passed to the delegate, as a single batch.
+     * </p>
+     */
+    @Override
+    public List<Path> simulateVcfsWithPhenopackets(List<Phenopacket> phenopackets) throws IOException {
+        Files.createDirectories(cacheDirectory);
+        Path[] paths = new Path[phenopackets.size()];
+        List<Integer> missingIndices = new ArrayList<>();
+        List<Phenopacket> missing = new ArrayList<>();
+        for (int i = 0; i < phenopackets.size(); i++) {
+            Path cached = cachedPath(phenopackets.get(i));
+            paths[i] = cached;
+            if (isComplete(cached)) {
+                touch(cached);
+            } else {
+                missingIndices.add(i);
+                missing.add(phenopackets.get(i));
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            List<Path> simulated = delegate.simulateVcfsWithPhenopackets(missing);
+            for (int i = 0; i < simulated.size(); i++) {
+                int idx = missingIndices.get(i);
+                store(simulated.get(i), paths[idx]);
+            }
+        }
+        return Arrays.asList(paths);
+    }
+
+    private synchronized void added(Path cached) throws IOException {
+        misses++;
+        inUse.merge(cached, 1, Integer::sum);
+        if (cacheSize < 0) {
+            cacheSize = listEntries().stream().mapToLong(this::entrySize).sum();
+        } else {
+            cacheSize += entrySize(cached);
+        }
+        evict(cached);
+    }
+
+    /**
+     * @return paths of the cached VCF files
+     */
+    private List<Path> listEntries() throws IOException {
+        try (Stream<Path> files = Files.list(cacheDirectory)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(outputSuffix))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private long entrySize(Path entry) {
+        return sizeOf(entry) + sizeOf(indexPath(entry));
+    }
+
+    /**
+     * Remove the least recently used files which are not in use until the cache fits into the budget.
+     *
+     * @param retained the file that must not be evicted
+     */
+    private void evict(Path retained) throws IOException {
+        if (cacheSize <= maxCacheSize) {
+            return;
+        }
+        List<Path> entries = listEntries();
+        entries.sort(Comparator.comparing(CachingVcfSimulator::lastModified));
+        for (Path entry : entries) {
+            if (cacheSize <= maxCacheSize) {
+                break;
+            }
+            if (entry.equals(retained) || inUse.containsKey(entry)) {
+                continue;
+            }
+            long size = entrySize(entry);
+            // the VCF file is removed first, hence the presence of the VCF file implies presence of its index
+            Files.deleteIfExists(entry);
+            Files.deleteIfExists(indexPath(entry));
+            cacheSize -= size;
+            evictions++;
+        }
+        LOGGER.info("Cache '{}' uses {} bytes out of {} bytes", cacheDirectory, cacheSize, maxCacheSize);
+    }
+
+    /**
+     * @return summary of the cache usage suitable for logging
+     */
+    public synchronized String getStatistics() {
+        return String.format("VCF cache hits: %d, misses: %d, evictions: %d", hits, misses, evictions);
+    }
+
+    /**
+     * Close the <code>delegate</code>, the cached files are kept.
+     */
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    public static final class Builder {
+
+        private VcfSimulator delegate;
+
+        private Path templateVcfPath;
+
+        private Path cacheDirectory;
+
+        private long maxCacheSize = Long.MAX_VALUE;
+
+        private String outputSuffix = ".vcf";
+
+        private String parameters = "";
+
+        private ScratchDirectory scratchDirectory = ScratchDirectory.getDefault();
+
+        private Builder() {
+        }
+
+        /**
+         * @param delegate simulator used to create the VCF files which are not cached yet
+         */
+        public Builder setDelegate(VcfSimulator delegate) {
+            this.delegate = delegate;
+            return this;
+        }
+
+        /**
+         * @param templateVcfPath template VCF file used by the <code>delegate</code>
+         */
+        public Builder setTemplateVcfPath(Path templateVcfPath) {
+            this.templateVcfPath = templateVcfPath;
+            return this;
+        }
+
+        public Builder setCacheDirectory(Path cacheDirectory) {
+            this.cacheDirectory = cacheDirectory;
+            return this;
+        }
+
+        /**
+         * @param maxCacheSize budget of the cache in bytes
+         */
+        public Builder setMaxCacheSize(long maxCacheSize) {
+            this.maxCacheSize = maxCacheSize;
+            return this;
+        }
+
+        /**
+         * @param outputSuffix suffix of the VCF files written by the <code>delegate</code>, e.g. <code>.vcf.gz</code>
+         */
+        public Builder setOutputSuffix(String outputSuffix) {
+            this.outputSuffix = outputSuffix;
+            return this;
+        }
+
+        /**
+         * @param parameters description of the <code>delegate</code> settings that change the content of the simulated
+         *                   VCF files, e.g. the regions the template is restricted to
+         */
+        public Builder setParameters(String parameters) {
+            this.parameters = parameters;
+            return this;
+        }
+
+        /**
+         * @param scratchDirectory scratch directory of the <code>delegate</code>, the simulated VCF files are released
+         *                         from it once they are moved into the cache
+         */
+        public Builder setScratchDirectory(ScratchDirectory scratchDirectory) {
+            this.scratchDirectory = scratchDirectory;
+            return this;
+        }
+
+        public CachingVcfSimulator build() {
+            return new CachingVcfSimulator(this);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.simulators;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Region of the genome with 1-based inclusive coordinates, optionally named, e.g. by the gene symbol.
+ */
+public final class GenomicRegion {
+
+    private final String contig;
+
+    private final int start, end;
+
+    private final String name;
+
+    public GenomicRegion(String contig, int start, int end, String name) {
+        this.contig = contig;
+        this.start = start;
+        this.end = end;
+        this.name = name;
+    }
+
+    /**
+     * Read regions from BED file. The 4th column, if present, is used as the region name.
+     *
+     * @param bedPath path to BED file
+     * @return list of regions in the order of the file
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    public static List<GenomicRegion> readBedFile(Path bedPath) throws IOException {
+        List<GenomicRegion> regions = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(bedPath)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+                    continue;
+                }
+                String[] tokens = line.split("\t");
+                if (tokens.length < 3) {
+                    throw new IOException("Expected at least 3 columns at line " + lineNumber + " of '" + bedPath + "'");
+                }
+                try {
+                    // BED coordinates are 0-based, half-open
+                    regions.add(new GenomicRegion(tokens[0], Integer.parseInt(tokens[1].trim()) + 1,
+                            Integer.parseInt(tokens[2].trim()), tokens.length > 3 ? tokens[3].trim() : ""));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid coordinates at line " + lineNumber + " of '" + bedPath + "'", e);
+                }
+            }
+        }
+        return regions;
+    }
+
+    public String getContig() {
+        return contig;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GenomicRegion that = (GenomicRegion) o;
+        return start == that.start &&
+                end == that.end &&
+                Objects.equals(contig, that.contig) &&
+                Objects.equals(name, that.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(contig, start, end, name);
+    }
+
+    @Override
+    public String toString() {
+        return contig + ":" + start + "-" + end + (name.isEmpty() ? "" : "(" + name + ")");
+    }
+}
@@ -0,0 +1,206 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.simulators;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFContigHeaderLine;
+import htsjdk.variant.vcf.VCFFileReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Set of non-overlapping regions used to restrict the template records written into the simulated VCF.
+ * <p>
+ * The regions are extended by the flank and the overlapping or adjacent regions are merged. The records of indexed
+ * template are retrieved by querying the index region by region, otherwise the template is scanned and the records
+ * are filtered.
+ * </p>
+ */
+public final class RegionSet {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RegionSet.class);
+
+    /**
+     * Merged regions on each contig, keyed by the region start.
+     */
+    private final Map<String, TreeMap<Integer, GenomicRegion>> regionsByContig;
+
+    private RegionSet(Map<String, TreeMap<Integer, GenomicRegion>> regionsByContig) {
+        this.regionsByContig = regionsByContig;
+    }
+
+    /**
+     * @param regions regions to include, possibly overlapping
+     * @param flank   number of bases to add on each side of the regions
+     * @return set of merged regions
+     */
+    public static RegionSet of(Collection<GenomicRegion> regions, int flank) {
+        Map<String, List<GenomicRegion>> byContig = new HashMap<>();
+        for (GenomicRegion region : regions) {
+            byContig.computeIfAbsent(region.getContig(), k -> new ArrayList<>())
+                    .add(new GenomicRegion(region.getContig(), Math.max(1, region.getStart() - flank), region.getEnd() + flank, region.getName()));
+        }
+
+        Map<String, TreeMap<Integer, GenomicRegion>> merged = new HashMap<>();
+        for (Map.Entry<String, List<GenomicRegion>> entry : byContig.entrySet()) {
+            List<GenomicRegion> contigRegions = entry.getValue();
+            contigRegions.sort(Comparator.comparingInt(GenomicRegion::getStart));
+            TreeMap<Integer, GenomicRegion> contigMerged = new TreeMap<>();
+            GenomicRegion current = null;
+            for (GenomicRegion region : contigRegions) {
+                if (current != null && region.getStart() <= current.getEnd() + 1) {
+                    current = new GenomicRegion(current.getContig(), current.getStart(), Math.max(current.getEnd(), region.getEnd()), current.getName());
+                } else {
+                    if (current != null) {
+                        contigMerged.put(current.getStart(), current);
+                    }
+                    current = region;
+                }
+            }
+            if (current != null) {
+                contigMerged.put(current.getStart(), current);
+            }
+            merged.put(entry.getKey(), contigMerged);
+        }
+        return new RegionSet(merged);
+    }
+
+    /**
+     * @return number of the merged regions
+     */
+    public int size() {
+        return regionsByContig.values().stream().mapToInt(Map::size).sum();
+    }
+
+    /**
+     * @return <code>true</code> if the <code>variant</code> overlaps any of the regions
+     */
+    public boolean overlaps(VariantContext variant) {
+        TreeMap<Integer, GenomicRegion> regions = regionsByContig.get(variant.getContig());
+        if (regions == null) {
+            return false;
+        }
+        // the regions do not overlap, hence only the last region starting before the variant end can overlap it
+        Map.Entry<Integer, GenomicRegion> candidate = regions.floorEntry(variant.getEnd());
+        return candidate != null && candidate.getValue().getEnd() >= variant.getStart();
+    }
+
+    /**
+     * @return the merged regions ordered by contig name and start, e.g. <code>1:100-200,2:300-400</code>
+     */
+    @Override
+    public String toString() {
+        return new TreeMap<>(regionsByContig).values().stream()
+                .flatMap(regions -> regions.values().stream())
+                .map(region -> region.getContig() + ":" + region.getStart() + "-" + region.getEnd())
+                .collect(Collectors.joining(","));
+    }
+
+    /**
+     * Filter the sorted stream of template records.
+     *
+     * @param records sorted template records
+     * @return iterator over the records overlapping the regions
+     */
+    public Iterator<VariantContext> filter(Iterator<VariantContext> records) {
+        return new Iterator<VariantContext>() {
+
+            private VariantContext next = advance();
+
+            private VariantContext advance() {
+                while (records.hasNext()) {
+                    VariantContext vc = records.next();
+                    if (overlaps(vc)) {
+                        return vc;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public VariantContext next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                VariantContext current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    /**
+     * Query the indexed template region by region, in the order of the contigs in the template header. A record
+     * overlapping two regions is returned only once.
+     *
+     * @param reader reader of indexed template
+     * @return iterator over the sorted records overlapping the regions
+     */
+    public Iterator<VariantContext> query(VCFFileReader reader) {
+        List<GenomicRegion> ordered = new ArrayList<>(size());
+        Set<String> headerContigs = new HashSet<>();
+        for (VCFContigHeaderLine contig : reader.getFileHeader().getContigLines()) {
+            headerContigs.add(contig.getID());
+            ordered.addAll(regionsByContig.getOrDefault(contig.getID(), new TreeMap<>()).values());
+        }
+        for (String contig : regionsByContig.keySet()) {
+            if (!headerContigs.contains(contig)) {
+                LOGGER.warn("Contig '{}' is not present in the template header, skipping its regions", contig);
+            }
+        }
+
+        return new Iterator<VariantContext>() {
+
+            private final Iterator<GenomicRegion> regions = ordered.iterator();
+
+            private GenomicRegion previous, current;
+
+            private CloseableIterator<VariantContext> records;
+
+            private VariantContext next = advance();
+
+            private VariantContext advance() {
+                while (true) {
+                    while (records != null && records.hasNext()) {
+                        VariantContext vc = records.next();
+                        // records starting within the previous region on the same contig have been returned already
+                        if (previous == null || !previous.getContig().equals(vc.getContig()) || vc.getStart() > previous.getEnd()) {
+                            return vc;
+                        }
+                    }
+                    if (records != null) {
+                        records.close();
+                        previous = current;
+                    }
+                    if (!regions.hasNext()) {
+                        return null;
+                    }
+                    current = regions.next();
+                    records = reader.query(current.getContig(), current.getStart(), current.getEnd());
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public VariantContext next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                VariantContext vc = next;
+                next = advance();
+                return vc;
+            }
+        };
+    }
+}
@@ -0,0 +1,166 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.simulators;
+
+import htsjdk.tribble.Tribble;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Directory for the temporary files of a single run, e.g. the simulated VCF files.
+ * <p>
+ * The files are deleted as soon as they are {@link #release(Path) released}, the directory is deleted with all the
+ * remaining files when the run is over. Peak size of the files present in the directory is tracked, so that
+ * the directory can be placed e.g. on <code>tmpfs</code> with confidence.
+ * </p>
+ * <p>
+ * The usage is tracked incrementally, the size of a file is counted once the file is reported as
+ * {@link #written(Path) written} and until it is released.
+ * </p>
+ */
+public final class ScratchDirectory implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScratchDirectory.class);
+
+    private static ScratchDirectory defaultDirectory;
+
+    private final Path directory;
+
+    /**
+     * Files created in the directory which have not been released yet, mapped to their size along with the index.
+     */
+    private final Map<Path, Long> liveFiles = new LinkedHashMap<>();
+
+    private long usage = 0;
+
+    private long peakUsage = 0;
+
+    private ScratchDirectory(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Create a new scratch directory.
+     *
+     * @param parent directory where the scratch directory is created
+     * @return new scratch directory
+     * @throws IOException if the directory cannot be created
+     */
+    public static ScratchDirectory create(Path parent) throws IOException {
+        Files.createDirectories(parent);
+        Path directory = Files.createTempDirectory(parent, "exomiser-simulations-");
+        LOGGER.info("Using scratch directory '{}'", directory);
+        return new ScratchDirectory(directory);
+    }
+
+    /**
+     * @return scratch directory in <code>java.io.tmpdir</code> used by the simulators which are not given a scratch
+     * directory explicitly. The directory is deleted when JVM shuts down
+     */
+    public static synchronized ScratchDirectory getDefault() {
+        if (defaultDirectory == null) {
+            try {
+                defaultDirectory = create(Paths.get(System.getProperty("java.io.tmpdir")));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(defaultDirectory::close));
+        }
+        return defaultDirectory;
+    }
+
+    private static long sizeOf(Path path) {
+        try {
+            return Files.isRegularFile(path) ? Files.size(path) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static Path indexPath(Path path) {
+        return Tribble.tabixIndexFile(path.toFile()).toPath();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Create a new empty file in the scratch directory.
+     *
+     * @param prefix prefix of the file name
+     * @param suffix suffix of the file name, e.g. <code>.vcf</code>
+     * @return path to the new file
+     * @throws IOException if the file cannot be created
+     */
+    public synchronized Path createFile(String prefix, String suffix) throws IOException {
+        Path path = Files.createTempFile(directory, prefix, suffix);
+        liveFiles.put(path, 0L);
+        return path;
+    }
+
+    /**
+     * Count the size of the file created by {@link #createFile(String, String)} along with its index towards the usage
+     * of the directory. The method is called once the file is written, only the given file is measured.
+     *
+     * @param path path to the file which has been written
+     */
+    public synchronized void written(Path path) {
+        Long previous = liveFiles.get(path);
+        if (previous == null) {
+            return;
+        }
+        long size = sizeOf(path) + sizeOf(indexPath(path));
+        liveFiles.put(path, size);
+        usage += size - previous;
+        peakUsage = Math.max(peakUsage, usage);
+    }
+
+    /**
+     * Delete the file created by {@link #createFile(String, String)} along with its index. Paths outside of the scratch
+     * directory, e.g. cached VCF files, are left untouched.
+     *
+     * @param path path to the file which is not needed anymore
+     * @throws IOException if the file cannot be deleted
+     */
+    public synchronized void release(Path path) throws IOException {
+        Long size = liveFiles.remove(path);
+        if (size == null) {
+            return;
+        }
+        usage -= size;
+        Files.deleteIfExists(indexPath(path));
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * @return peak size of the files present in the scratch directory at the same time in bytes
+     */
+    public synchronized long getPeakUsage() {
+        return peakUsage;
+    }
+
+    /**
+     * Delete the scratch directory along with all the files.
+     */
+    @Override
+    public synchronized void close() {
+        LOGGER.info("Peak usage of scratch directory '{}' was {} bytes", directory, getPeakUsage());
+        liveFiles.clear();
+        usage = 0;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            LOGGER.warn("Unable to delete scratch directory '{}': {}", directory, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.simulators;
+
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Pool of background templates stored in a compact binary file, used to simulate each case on a template drawn from
+ * hundreds of exomes.
+ * <p>
+ * Each template record is packed into {@link #RECORD_SIZE} bytes: position, indices of the REF, ALT and FILTER strings
+ * into dictionaries shared by all the templates, QUAL, contig index and genotype of the first sample encoded as allele
+ * indices. The records of each template are sorted and memory-mapped, hence the templates are kept off-heap and only
+ * the pages touched by a simulation are loaded. The pool file is built once by {@link #build(List, Path)} and opened
+ * in the later runs by {@link #open(Path)}, which reads only the dictionaries.
+ * </p>
+ * <p>
+ * Only the fields used by the analysis are kept, ID, INFO and FORMAT fields other than <code>GT</code> are dropped.
+ * At most two alleles fit into a packed genotype, hence templates with polyploid genotypes are rejected.
+ * </p>
+ */
+public final class TemplatePool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TemplatePool.class);
+
+    /**
+     * Number of bytes of a single packed record.
+     */
+    static final int RECORD_SIZE = 28;
+
+    private static final int POSITION_OFFSET = 0, REF_OFFSET = 4, ALT_OFFSET = 8, FILTER_OFFSET = 12,
+            QUAL_OFFSET = 16, CONTIG_OFFSET = 24, FIRST_ALLELE_OFFSET = 26, SECOND_ALLELE_OFFSET = 27;
+
+    /**
+     * The highest bit of the contig index marks phased genotype.
+     */
+    private static final int PHASED_FLAG = 0x8000;
+
+    private static final byte MISSING_ALLELE = -1;
+
+    /**
+     * Marks the second allele of haploid genotype or both alleles of a template without samples.
+     */
+    private static final byte NO_ALLELE = -2;
+
+    /**
+     * <code>EXSMPOOL</code> in ASCII.
+     */
+    private static final long MAGIC = 0x4558534d504f4f4cL;
+
+    private static final int VERSION = 1;
+
+    /**
+     * Magic, version and offset of the directory with the dictionaries.
+     */
+    private static final int PREAMBLE_SIZE = 8 + 4 + 8;
+
+    private final List<String> contigs;
+
+    private final int[] contigLengths;
+
+    private final Map<String, Integer> contigIndices;
+
+    private final String[] alleles;
+
+    private final String[] filters;
+
+    /**
+     * FILTER IDs mapped to their descriptions.
+     */
+    private final Map<String, String> filterDescriptions;
+
+    private final List<String> templateNames;
+
+    private final MappedByteBuffer[] templateRecords;
+
+    private TemplatePool(List<String> contigs, int[] contigLengths, String[] alleles, String[] filters,
+                         Map<String, String> filterDescriptions, List<String> templateNames,
+                         MappedByteBuffer[] templateRecords) {
+        this.contigs = contigs;
+        this.contigLengths = contigLengths;
+        this.contigIndices = new HashMap<>();
+        for (int i = 0; i < contigs.size(); i++) {
+            contigIndices.put(contigs.get(i), i);
+        }
+        this.alleles = alleles;
+        this.filters = filters;
+        this.filterDescriptions = filterDescriptions;
+        this.templateNames = templateNames;
+        this.templateRecords = templateRecords;
+    }
+
+    /**
+     * Pack records of the template VCF files into the pool file.
+     *
+     * @param templateVcfPaths paths to possibly unsorted and un-indexed VCF files
+     * @param poolPath         path where the pool file is written
+     * @return the pool opened from the written file
+     * @throws IOException if a template cannot be read or the pool file cannot be written
+     */
+    public static TemplatePool build(List<Path> templateVcfPaths, Path poolPath) throws IOException {
+        Path directory = poolPath.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path tmp = Files.createTempFile(directory, poolPath.getFileName().toString(), ".tmp");
+        try {
+            new Builder().write(templateVcfPaths, tmp);
+            // other runs never see a partially written pool
+            Files.move(tmp, poolPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return open(poolPath);
+    }
+
+    /**
+     * Open the pool file written by {@link #build(List, Path)}.
+     *
+     * @param poolPath path to the pool file
+     * @return the pool
+     * @throws IOException if the file cannot be read or is not a pool file
+     */
+    public static TemplatePool open(Path poolPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(poolPath, StandardOpenOption.READ)) {
+            ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_SIZE);
+            while (preamble.hasRemaining() && channel.read(preamble) >= 0) {
+                // read the whole preamble
+            }
+            preamble.flip();
+            if (preamble.remaining() < PREAMBLE_SIZE || preamble.getLong() != MAGIC) {
+                throw new IOException("File '" + poolPath + "' is not a template pool");
+            }
+            int version = preamble.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version + " of template pool '" + poolPath + "'");
+            }
+            channel.position(preamble.getLong());
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            int contigCount = in.readInt();
+            List<String> contigs = new ArrayList<>(contigCount);
+            int[] contigLengths = new int[contigCount];
+            for (int i = 0; i < contigCount; i++) {
+                contigs.add(readString(in));
+                contigLengths[i] = in.readInt();
+            }
+            String[] alleles = readStrings(in);
+            String[] filters = readStrings(in);
+            int filterDescriptionCount = in.readInt();
+            Map<String, String> filterDescriptions = new LinkedHashMap<>();
+            for (int i = 0; i < filterDescriptionCount; i++) {
+                filterDescriptions.put(readString(in), readString(in));
+            }
+            int templateCount = in.readInt();
+            List<String> templateNames = new ArrayList<>(templateCount);
+            MappedByteBuffer[] templateRecords = new MappedByteBuffer[templateCount];
+            for (int i = 0; i < templateCount; i++) {
+                templateNames.add(readString(in));
+                long offset = in.readLong();
+                int recordCount = in.readInt();
+                // a separate buffer for each template, a single buffer cannot map more than 2 GB
+                templateRecords[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) recordCount * RECORD_SIZE);
+            }
+            LOGGER.info("Opened pool '{}' of {} templates", poolPath, templateCount);
+            return new TemplatePool(contigs, contigLengths, alleles, filters, filterDescriptions, templateNames, templateRecords);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        // not DataOutputStream#writeUTF, long alleles do not fit into its 64 kB limit
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(in);
+        }
+        return strings;
+    }
+
+    /**
+     * Format QUAL the same way as {@link VCFEncoder}.
+     */
+    private static String formatQual(double qual) {
+        if (Double.isNaN(qual)) {
+            return VCFConstants.MISSING_VALUE_v4;
+        }
+        String formatted = String.format(Locale.US, "%.2f", qual);
+        return formatted.endsWith(".00") ? formatted.substring(0, formatted.length() - 3) : formatted;
+    }
+
+    /**
+     * @return number of templates in the pool
+     */
+    public int size() {
+        return templateNames.size();
+    }
+
+    /**
+     * @return file name of the template VCF the template was built from
+     */
+    public String getTemplateName(int template) {
+        return templateNames.get(template);
+    }
+
+    public int getRecordCount(int template) {
+        return templateRecords[template].capacity() / RECORD_SIZE;
+    }
+
+    /**
+     * @return index of the contig in the header of the simulated VCF, {@link Integer#MAX_VALUE} for unknown contig
+     */
+    int getContigIndex(String contig) {
+        return contigIndices.getOrDefault(contig, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return view of the sorted packed records of the template, safe to be used by a single thread
+     */
+    ByteBuffer getRecords(int template) {
+        return templateRecords[template].duplicate();
+    }
+
+    static int getContigIndex(ByteBuffer records, int record) {
+        return records.getShort(record * RECORD_SIZE + CONTIG_OFFSET) & ~PHASED_FLAG & 0xFFFF;
+    }
+
+    static int getPosition(ByteBuffer records, int record) {
+        return records.getInt(record * RECORD_SIZE + POSITION_OFFSET);
+    }
+
+    /**
+     * @param sampleId ID of the simulated sample
+     * @return header of VCF simulated on any template of the pool
+     */
+    public VCFHeader createHeader(String sampleId) {
+        Set<VCFHeaderLine> lines = new LinkedHashSet<>();
+        for (Map.Entry<String, String> filter : filterDescriptions.entrySet()) {
+            lines.add(new VCFFilterHeaderLine(filter.getKey(), filter.getValue()));
+        }
+        lines.add(VCFStandardHeaderLines.getFormatLine(VCFConstants.GENOTYPE_KEY));
+        for (int i = 0; i < contigs.size(); i++) {
+            Map<String, String> mapping = new LinkedHashMap<>();
+            mapping.put("ID", contigs.get(i));
+            if (contigLengths[i] > 0) {
+                mapping.put("length", Integer.toString(contigLengths[i]));
+            }
+            lines.add(new VCFContigHeaderLine(mapping, i));
+        }
+        return new VCFHeader(lines, Collections.singleton(sampleId));
+    }
+
+    /**
+     * Append VCF line of the packed record, without the trailing new line.
+     */
+    void appendRecord(ByteBuffer records, int record, StringBuilder sb) {
+        int base = record * RECORD_SIZE;
+        int contig = records.getShort(base + CONTIG_OFFSET) & 0xFFFF;
+        sb.append(contigs.get(contig & ~PHASED_FLAG)).append('\t')
+                .append(records.getInt(base + POSITION_OFFSET)).append('\t')
+                .append(VCFConstants.EMPTY_ID_FIELD).append('\t')
+                .append(alleles[records.getInt(base + REF_OFFSET)]).append('\t')
+                .append(alleles[records.getInt(base + ALT_OFFSET)]).append('\t')
+                .append(formatQual(records.getDouble(base + QUAL_OFFSET))).append('\t')
+                .append(filters[records.getInt(base + FILTER_OFFSET)]).append('\t')
+                .append(VCFConstants.EMPTY_INFO_FIELD).append('\t')
+                .append(VCFConstants.GENOTYPE_KEY).append('\t');
+        byte first = records.get(base + FIRST_ALLELE_OFFSET);
+        byte second = records.get(base + SECOND_ALLELE_OFFSET);
+        if (first == NO_ALLELE) {
+            sb.append(VCFConstants.EMPTY_GENOTYPE);
+            return;
+        }
+        appendAllele(first, sb);
+        if (second != NO_ALLELE) {
+            sb.append((contig & PHASED_FLAG) != 0 ? VCFConstants.PHASED : VCFConstants.UNPHASED);
+            appendAllele(second, sb);
+        }
+    }
+
+    private static void appendAllele(byte allele, StringBuilder sb) {
+        if (allele == MISSING_ALLELE) {
+            sb.append(VCFConstants.EMPTY_ALLELE);
+        } else {
+            sb.append(allele);
+        }
+    }
+
+    /**
+     * Packs the templates into the pool file, collecting the dictionaries along the way.
+     */
+    private static class Builder {
+
+        private final Map<String, Integer> contigIndices = new LinkedHashMap<>();
+
+        private final List<Integer> contigLengths = new ArrayList<>();
+
+        private final Map<String, Integer> alleleIndices = new LinkedHashMap<>();
+
+        private final Map<String, Integer> filterIndices = new LinkedHashMap<>();
+
+        private final Map<String, String> filterDescriptions = new LinkedHashMap<>();
+
+        private static int indexOf(Map<String, Integer> dictionary, String value) {
+            return dictionary.computeIfAbsent(value, k -> dictionary.size());
+        }
+
+        private static byte alleleIndex(VariantContext vc, Allele allele) {
+            if (allele.isNoCall()) {
+                return MISSING_ALLELE;
+            }
+            int index = vc.getAlleleIndex(allele);
+            if (index < 0 || index > Byte.MAX_VALUE) {
+                throw new IllegalArgumentException("Unable to pack allele " + allele + " of variant at " + vc.getContig() + ":" + vc.getStart());
+            }
+            return (byte) index;
+        }
+
+        private int contigIndex(String contig, int length) {
+            Integer index = contigIndices.get(contig);
+            if (index == null) {
+                index = contigIndices.size();
+                if (index >= PHASED_FLAG) {
+                    throw new IllegalArgumentException("Too many contigs, at most " + PHASED_FLAG + " are supported");
+                }
+                contigIndices.put(contig, index);
+                contigLengths.add(length);
+            }
+            return index;
+        }
+
+        private void write(List<Path> templateVcfPaths, Path poolPath) throws IOException {
+            List<String> templateNames = new ArrayList<>();
+            List<long[]> extents = new ArrayList<>();
+            try (FileChannel out = FileChannel.open(poolPath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                out.position(PREAMBLE_SIZE);
+                for (Path templateVcfPath : templateVcfPaths) {
+                    LOGGER.info("Packing template '{}' into the pool", templateVcfPath);
+                    long offset = out.position();
+                    int recordCount = writeTemplate(templateVcfPath, out);
+                    templateNames.add(templateVcfPath.getFileName().toString());
+                    extents.add(new long[]{offset, recordCount});
+                }
+
+                long directoryOffset = out.position();
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out)));
+                dos.writeInt(contigIndices.size());
+                int i = 0;
+                for (String contig : contigIndices.keySet()) {
+                    writeString(dos, contig);
+                    dos.writeInt(contigLengths.get(i++));
+                }
+                dos.writeInt(alleleIndices.size());
+                for (String allele : alleleIndices.keySet()) {
+                    writeString(dos, allele);
+                }
+                dos.writeInt(filterIndices.size());
+                for (String filter : filterIndices.keySet()) {
+                    writeString(dos, filter);
+                }
+                dos.writeInt(filterDescriptions.size());
+                for (Map.Entry<String, String> filter : filterDescriptions.entrySet()) {
+                    writeString(dos, filter.getKey());
+                    writeString(dos, filter.getValue());
+                }
+                dos.writeInt(templateNames.size());
+                for (int t = 0; t < templateNames.size(); t++) {
+                    writeString(dos, templateNames.get(t));
+                    dos.writeLong(extents.get(t)[0]);
+                    dos.writeInt((int) extents.get(t)[1]);
+                }
+                dos.flush();
+
+                ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_SIZE);
+                preamble.putLong(MAGIC).putInt(VERSION).putLong(directoryOffset).flip();
+                out.position(0);
+                while (preamble.hasRemaining()) {
+                    out.write(preamble);
+                }
+            }
+        }
+
+        /**
+         * Pack and sort records of the template and write them at the current position of the <code>out</code>.
+         *
+         * @return number of written records
+         */
+        private int writeTemplate(Path templateVcfPath, FileChannel out) throws IOException {
+            ByteBuffer packed = ByteBuffer.allocate(RECORD_SIZE * 1024);
+            int recordCount = 0;
+            try (VCFFileReader reader = new VCFFileReader(templateVcfPath, false)) {
+                VCFHeader header = reader.getFileHeader();
+                for (VCFContigHeaderLine contig : header.getContigLines()) {
+                    String length = contig.getGenericFields().get("length");
+                    contigIndex(contig.getID(), length == null ? 0 : Integer.parseInt(length));
+                }
+                for (VCFFilterHeaderLine filter : header.getFilterLines()) {
+                    filterDescriptions.putIfAbsent(filter.getID(), filter.getDescription());
+                }
+                String sample = header.getNGenotypeSamples() > 0 ? header.getGenotypeSamples().get(0) : null;
+
+                for (VariantContext vc : reader) {
+                    if (!packed.hasRemaining()) {
+                        ByteBuffer larger = ByteBuffer.allocate(packed.capacity() * 2);
+                        packed.flip();
+                        larger.put(packed);
+                        packed = larger;
+                    }
+                    pack(vc, sample, packed);
+                    recordCount++;
+                }
+            }
+
+            // the records are sorted by contig index and position, the order of records at the same position is kept
+            final ByteBuffer records = packed;
+            Integer[] order = new Integer[recordCount];
+            for (int i = 0; i < recordCount; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.<Integer>comparingInt(i -> getContigIndex(records, i))
+                    .thenComparingInt(i -> getPosition(records, i)));
+
+            ByteBuffer sorted = ByteBuffer.allocate(recordCount * RECORD_SIZE);
+            for (int i : order) {
+                ByteBuffer record = records.duplicate();
+                record.limit(i * RECORD_SIZE + RECORD_SIZE).position(i * RECORD_SIZE);
+                sorted.put(record);
+            }
+            sorted.flip();
+            while (sorted.hasRemaining()) {
+                out.write(sorted);
+            }
+            return recordCount;
+        }
+
+        private void pack(VariantContext vc, String sample, ByteBuffer packed) {
+            String alt = vc.getAlternateAlleles().isEmpty()
+                    ? VCFConstants.EMPTY_ALTERNATE_ALLELE_FIELD
+                    : vc.getAlternateAlleles().stream().map(Allele::getDisplayString).collect(Collectors.joining(","));
+            String filter = !vc.filtersWereApplied()
+                    ? VCFConstants.UNFILTERED
+                    : vc.isFiltered() ? String.join(";", new TreeSet<>(vc.getFilters())) : VCFConstants.PASSES_FILTERS_v4;
+
+            byte first = NO_ALLELE, second = NO_ALLELE;
+            boolean phased = false;
+            if (sample != null) {
+                Genotype genotype = vc.getGenotype(sample);
+                List<Allele> gtAlleles = genotype.getAlleles();
+                if (gtAlleles.size() > 2) {
+                    throw new IllegalArgumentException("Unable to pack genotype " + genotype.getGenotypeString()
+                            + " of variant at " + vc.getContig() + ":" + vc.getStart() + ", at most diploid genotypes are supported");
+                }
+                if (!gtAlleles.isEmpty()) {
+                    first = alleleIndex(vc, gtAlleles.get(0));
+                }
+                if (gtAlleles.size() > 1) {
+                    second = alleleIndex(vc, gtAlleles.get(1));
+                }
+                phased = genotype.isPhased();
+            }
+            int contig = contigIndex(vc.getContig(), 0);
+
+            packed.putInt(vc.getStart())
+                    .putInt(indexOf(alleleIndices, vc.getReference().getDisplayString()))
+                    .putInt(indexOf(alleleIndices, alt))
+                    .putInt(indexOf(filterIndices, filter))
+                    .putDouble(vc.hasLog10PError() ? vc.getPhredScaledQual() : Double.NaN)
+                    .putShort((short) (phased ? contig | PHASED_FLAG : contig))
+                    .put(first)
+                    .put(second);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.simulators;
+
+import htsjdk.tribble.Tribble;
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Case-independent filter of the template records. A record that fails the filter cannot pass the analysis of any
+ * simulated case, hence the template can be reduced once and the reduced template used for all the simulations.
+ * <p>
+ * The reduced template is written next to the template, see {@link #getPrefilteredPath(Path)}. Its header records the
+ * filter configuration and the SHA-256 checksum of the template it was created from. The reduced template is used by
+ * {@link #resolve(Path)} only if both match. An index of the reduced template older than the reduced template itself
+ * is stale, it is deleted and created again.
+ * </p>
+ * <p>
+ * The filter mirrors the Exomiser quality filter, which fails records with QUAL below the threshold or with missing
+ * QUAL, and the failed variant filter, which fails records with a non-PASS FILTER. The injected variants are never
+ * filtered.
+ * </p>
+ */
+public class TemplatePrefilter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TemplatePrefilter.class);
+
+    /**
+     * Key of the header line with the filter configuration.
+     */
+    static final String FILTER_HEADER_KEY = "prefilter";
+
+    /**
+     * Key of the header line describing the template the reduced template was created from.
+     */
+    static final String SOURCE_HEADER_KEY = "prefilterSource";
+
+    private final double minQuality;
+
+    private final boolean removeFailed;
+
+    /**
+     * @param minQuality   records with QUAL below the value are removed
+     * @param removeFailed remove records with a non-PASS FILTER if <code>true</code>
+     */
+    public TemplatePrefilter(double minQuality, boolean removeFailed) {
+        this.minQuality = minQuality;
+        this.removeFailed = removeFailed;
+    }
+
+    /**
+     * @param templateVcfPath {@link Path} to template VCF file
+     * @return {@link Path} where the reduced template is written, e.g. <code>template.prefiltered.vcf</code>
+     */
+    public static Path getPrefilteredPath(Path templateVcfPath) {
+        String name = templateVcfPath.getFileName().toString();
+        if (name.endsWith(".vcf.gz")) {
+            name = name.substring(0, name.length() - ".vcf.gz".length());
+        } else if (name.endsWith(".vcf")) {
+            name = name.substring(0, name.length() - ".vcf".length());
+        }
+        return templateVcfPath.resolveSibling(name + ".prefiltered.vcf");
+    }
+
+    private static String describeSource(Path templateVcfPath) throws IOException {
+        LOGGER.info("Computing checksum of template VCF file '{}'", templateVcfPath);
+        return templateVcfPath.getFileName() + ",sha256=" + CachingVcfSimulator.toHex(CachingVcfSimulator.digest(templateVcfPath));
+    }
+
+    private static Path[] indexPaths(Path vcfPath) {
+        return new Path[]{Tribble.indexFile(vcfPath.toFile()).toPath(), Tribble.tabixIndexFile(vcfPath.toFile()).toPath()};
+    }
+
+    /**
+     * Delete indices of the reduced template and index it again if the template is indexed.
+     */
+    private static void reindex(Path templateVcfPath, Path prefilteredPath) throws IOException {
+        for (Path indexPath : indexPaths(prefilteredPath)) {
+            Files.deleteIfExists(indexPath);
+        }
+        if (SingleVcfSimulator.isIndexed(templateVcfPath)) {
+            IndexFactory.createDynamicIndex(prefilteredPath.toFile(), new VCFCodec()).writeBasedOnFeatureFile(prefilteredPath.toFile());
+        }
+    }
+
+    /**
+     * @return <code>true</code> if an index of the VCF file was written before the file
+     */
+    private static boolean hasStaleIndex(Path vcfPath) throws IOException {
+        long modified = Files.getLastModifiedTime(vcfPath).toMillis();
+        for (Path indexPath : indexPaths(vcfPath)) {
+            if (Files.isRegularFile(indexPath) && Files.getLastModifiedTime(indexPath).toMillis() < modified) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return description of the filter configuration recorded in the header of the reduced template
+     */
+    public String getFingerprint() {
+        return "minQuality=" + minQuality + ",removeFailed=" + removeFailed;
+    }
+
+    /**
+     * @return <code>true</code> if the record can pass the analysis
+     */
+    public boolean test(VariantContext vc) {
+        if (removeFailed && vc.isFiltered()) {
+            return false;
+        }
+        // missing QUAL is reported as -10
+        return vc.getPhredScaledQual() >= minQuality;
+    }
+
+    /**
+     * Write records of the template passing the filter into {@link #getPrefilteredPath(Path)}. The records keep the
+     * template order, the reduced template of indexed template is indexed as well.
+     *
+     * @param templateVcfPath {@link Path} to template VCF file
+     * @return {@link Path} to the reduced template
+     */
+    public Path write(Path templateVcfPath) throws IOException {
+        Path prefilteredPath = getPrefilteredPath(templateVcfPath);
+        Path tmpPath = prefilteredPath.resolveSibling(prefilteredPath.getFileName() + ".tmp");
+        int kept = 0, removed = 0;
+        try (VCFFileReader reader = new VCFFileReader(templateVcfPath, false);
+             VariantContextWriter writer = new VariantContextWriterBuilder()
+                     .setOutputPath(tmpPath)
+                     .setOutputFileType(VariantContextWriterBuilder.OutputType.VCF)
+                     .setOption(Options.ALLOW_MISSING_FIELDS_IN_HEADER)
+                     .unsetOption(Options.INDEX_ON_THE_FLY)
+                     .build()) {
+            VCFHeader header = new VCFHeader(reader.getFileHeader());
+            header.addMetaDataLine(new VCFHeaderLine(FILTER_HEADER_KEY, getFingerprint()));
+            header.addMetaDataLine(new VCFHeaderLine(SOURCE_HEADER_KEY, describeSource(templateVcfPath)));
+            writer.writeHeader(header);
+            for (VariantContext vc : reader) {
+                if (test(vc)) {
+                    writer.add(vc);
+                    kept++;
+                } else {
+                    removed++;
+                }
+            }
+        }
+        Files.move(tmpPath, prefilteredPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // the index of the previous reduced template must not be used with the new one
+        reindex(templateVcfPath, prefilteredPath);
+        LOGGER.info("Wrote {} records of '{}' into '{}', removed {} records", kept, templateVcfPath, prefilteredPath, removed);
+        return prefilteredPath;
+    }
+
+    /**
+     * @param templateVcfPath {@link Path} to template VCF file
+     * @return {@link Path} to the reduced template if it was created from the template by the same configuration,
+     * otherwise <code>templateVcfPath</code>
+     */
+    public Path resolve(Path templateVcfPath) throws IOException {
+        Path prefilteredPath = getPrefilteredPath(templateVcfPath);
+        if (!Files.isRegularFile(prefilteredPath)) {
+            return templateVcfPath;
+        }
+        VCFHeader header;
+        try (VCFFileReader reader = new VCFFileReader(prefilteredPath, false)) {
+            header = reader.getFileHeader();
+        }
+        VCFHeaderLine filter = header.getOtherHeaderLine(FILTER_HEADER_KEY);
+        VCFHeaderLine source = header.getOtherHeaderLine(SOURCE_HEADER_KEY);
+        if (filter == null || !filter.getValue().equals(getFingerprint())) {
+            LOGGER.warn("Not using '{}', it was created by filter '{}' instead of '{}'", prefilteredPath,
+                    filter == null ? "" : filter.getValue(), getFingerprint());
+            return templateVcfPath;
+        }
+        if (source == null || !source.getValue().equals(describeSource(templateVcfPath))) {
+            LOGGER.warn("Not using '{}', template '{}' has changed since", prefilteredPath, templateVcfPath);
+            return templateVcfPath;
+        }
+        if (hasStaleIndex(prefilteredPath)) {
+            LOGGER.warn("Index of '{}' is older than the file, indexing it again", prefilteredPath);
+            reindex(templateVcfPath, prefilteredPath);
+        }
+        LOGGER.info("Using pre-filtered template '{}' instead of '{}'", prefilteredPath, templateVcfPath);
+        return prefilteredPath;
+    }
+}
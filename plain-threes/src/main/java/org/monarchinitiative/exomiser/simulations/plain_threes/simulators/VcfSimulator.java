@@ -2,13 +2,44 @@ package org.monarchinitiative.exomiser.simulations.plain_threes.simulators;
 
 import org.phenopackets.schema.v1.Phenopacket;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
-public interface VcfSimulator {
+/**
+ * Simulator of VCF files with the variants of the phenopackets injected into a template.
+ * <p>
+ * Simulators holding resources other than the scratch files, e.g. a thread pool, release them when closed.
+ * </p>
+ */
+public interface VcfSimulator extends Closeable {
 
 
     Path simulateVcfWithPhenopacket(Phenopacket phenopacket) throws IOException;
 
+    /**
+     * Simulate VCF files for a batch of phenopackets. Implementations may override this method to create all the VCF
+     * files in a single pass over the template.
+     *
+     * @param phenopackets batch of phenopackets to simulate
+     * @return list of paths to simulated VCF files in the same order as the <code>phenopackets</code>
+     * @throws IOException if a VCF file cannot be written
+     */
+    default List<Path> simulateVcfsWithPhenopackets(List<Phenopacket> phenopackets) throws IOException {
+        List<Path> paths = new ArrayList<>(phenopackets.size());
+        for (Phenopacket phenopacket : phenopackets) {
+            paths.add(simulateVcfWithPhenopacket(phenopacket));
+        }
+        return paths;
+    }
+
+    /**
+     * Release the resources held by the simulator. The simulated VCF files are not deleted.
+     */
+    @Override
+    default void close() throws IOException {
+    }
 
 }
@@ -0,0 +1,118 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.simulators;
+
+import htsjdk.variant.variantcontext.GenotypesContext;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.variantcontext.VariantContextComparator;
+import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable in-memory representation of the template VCF file.
+ * <p>
+ * The template is decoded only once and its records are kept sorted by {@link VariantContextComparator}, so that the
+ * template can be shared by all the simulations, which only read the records:
+ * <ul>
+ * <li>records of a single-sample template keep the lazy (un-parsed) genotypes provided by htsjdk, which are compact
+ * and written verbatim without being decoded, the sample is renamed only in the header</li>
+ * <li>genotypes of a multi-sample template are renamed in each record, hence they are decoded while loading and kept
+ * in an immutable form instead of being decoded by the concurrent simulations</li>
+ * </ul>
+ * </p>
+ */
+public final class VcfTemplate {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VcfTemplate.class);
+
+    private final VCFHeader header;
+
+    private final VariantContextComparator comparator;
+
+    private final List<VariantContext> variants;
+
+    private VcfTemplate(VCFHeader header, VariantContextComparator comparator, List<VariantContext> variants) {
+        this.header = header;
+        this.comparator = comparator;
+        this.variants = variants;
+    }
+
+    /**
+     * Read all the records from the template VCF file and sort them.
+     *
+     * @param templateVcfPath {@link Path} to possibly un-indexed VCF file
+     * @return template with all the records sorted
+     */
+    public static VcfTemplate load(Path templateVcfPath) {
+        LOGGER.info("Loading template VCF file '{}' into memory", templateVcfPath);
+        try (VCFFileReader reader = new VCFFileReader(templateVcfPath, false)) {
+            VCFHeader header = reader.getFileHeader();
+            VariantContextComparator comparator = new VariantContextComparator(header.getContigLines());
+
+            boolean decode = header.getNGenotypeSamples() > 1;
+            List<VariantContext> variants = new ArrayList<>();
+            for (VariantContext vc : reader) {
+                variants.add(decode ? decode(vc) : vc);
+            }
+            variants.sort(comparator);
+            LOGGER.info("Loaded {} template variants", variants.size());
+            return new VcfTemplate(header, comparator, Collections.unmodifiableList(variants));
+        }
+    }
+
+    /**
+     * Decode the genotypes of the record and fill the caches htsjdk computes on first access, so that the shared
+     * record is not modified by the simulations.
+     */
+    private static VariantContext decode(VariantContext vc) {
+        GenotypesContext genotypes = GenotypesContext.copy(vc.getGenotypes()).immutable();
+        genotypes.getSampleNames();
+        genotypes.getSampleNamesOrderedByName();
+        genotypes.getMaxPloidy(2);
+        VariantContext decoded = new VariantContextBuilder(vc).genotypes(genotypes).make();
+        decoded.getType();
+        return decoded;
+    }
+
+    public VCFHeader getHeader() {
+        return header;
+    }
+
+    public VariantContextComparator getComparator() {
+        return comparator;
+    }
+
+    /**
+     * @return unmodifiable list of template records sorted by {@link #getComparator()}
+     */
+    public List<VariantContext> getVariants() {
+        return variants;
+    }
+
+    /**
+     * Find the index where the <code>variant</code> should be inserted among the template records. If there are
+     * template records at the same position, the <code>variant</code> is placed after them.
+     *
+     * @param variant {@link VariantContext} to be inserted
+     * @return index of the first template record that sorts after the <code>variant</code>
+     */
+    int insertionPoint(VariantContext variant) {
+        int low = 0;
+        int high = variants.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (comparator.compare(variants.get(mid), variant) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,87 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.commands;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class AnalysisBudgetTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private AnalysisBudget instance;
+
+    @BeforeEach
+    void setUp() {
+        instance = new AnalysisBudget(1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        instance.close();
+    }
+
+    @Test
+    void resultOfAnalysisWithinBudgetIsReturned() throws Exception {
+        assertThat(instance.run(() -> "results"), is("results"));
+        assertThat(instance.getTimedOutCount(), is(0));
+    }
+
+    @Test
+    void exceptionOfAnalysisIsRethrown() {
+        IOException e = assertThrows(IOException.class, () -> instance.run(() -> {
+            throw new IOException("unreadable VCF");
+        }));
+        assertThat(e.getMessage(), is("unreadable VCF"));
+    }
+
+    @Test
+    void analysisExceedingBudgetIsCancelled() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            CountDownLatch interrupted = new CountDownLatch(1);
+            assertThrows(TimeoutException.class, () -> instance.run(() -> {
+                try {
+                    Thread.sleep(TIMEOUT.toMillis());
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return null;
+            }));
+
+            interrupted.await();
+            assertThat(instance.getTimedOutCount(), is(1));
+        });
+    }
+
+    @Test
+    void nextAnalysisDoesNotWaitForAbandonedAnalysis() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            CountDownLatch finish = new CountDownLatch(1);
+            // ignores the interruption like Exomiser does
+            assertThrows(TimeoutException.class, () -> instance.run(() -> {
+                while (finish.getCount() > 0) {
+                    Thread.yield();
+                }
+                return null;
+            }));
+            assertThat(instance.getAbandonedCount(), is(1));
+
+            assertThat(instance.run(() -> "next"), is("next"));
+
+            finish.countDown();
+            while (instance.getAbandonedCount() > 0) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        });
+    }
+}
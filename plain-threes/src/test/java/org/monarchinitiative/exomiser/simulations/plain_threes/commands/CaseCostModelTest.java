@@ -0,0 +1,76 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.commands;
+
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.core.OntologyClass;
+import org.phenopackets.schema.v1.core.PhenotypicFeature;
+import org.phenopackets.schema.v1.core.Variant;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class CaseCostModelTest {
+
+    /**
+     * Create a phenopacket with the number of HPO terms and variants, its feature cost is
+     * <code>1 + 0.25 * hpoTerms + 0.5 * variants</code>.
+     */
+    private static Phenopacket makePhenopacket(String name, int hpoTerms, int variants) {
+        Phenopacket.Builder builder = Phenopacket.newBuilder().setId(name);
+        for (int i = 0; i < hpoTerms; i++) {
+            builder.addPhenotypicFeatures(PhenotypicFeature.newBuilder()
+                    .setType(OntologyClass.newBuilder().setId(String.format("HP:%07d", i + 1)).setLabel("term " + i)));
+        }
+        for (int i = 0; i < variants; i++) {
+            builder.addVariants(Variant.getDefaultInstance());
+        }
+        return builder.build();
+    }
+
+    @Test
+    void longestFirstOrderIsStable() {
+        int[] order = CaseCostModel.longestFirstOrder(new double[]{1, 3, 2, 3, 1});
+
+        assertThat(Arrays.equals(order, new int[]{1, 3, 2, 0, 4}), is(true));
+    }
+
+    @Test
+    void makespanOfLongestFirstSchedule() {
+        // 5 | 4, 3 | 3, 3 -> 5 + 3 and 4 + 3 + 3
+        assertThat(CaseCostModel.predictMakespan(new double[]{3, 5, 3, 4, 3}, 2), is(10.));
+        assertThat(CaseCostModel.predictMakespan(new double[]{3, 5, 3, 4, 3}, 1), is(18.));
+        assertThat(CaseCostModel.predictMakespan(new double[]{3, 5}, 4), is(5.));
+        assertThat(CaseCostModel.predictMakespan(new double[0], 2), is(0.));
+    }
+
+    @Test
+    void casesWithoutTimingsAreEstimatedByFeatures() {
+        // the phenopacket of the third case cannot be read
+        CaseCostModel.Estimates estimates = new CaseCostModel(Collections.emptyMap()).estimate(
+                Arrays.asList("small.json", "large.json", "missing.json"),
+                Arrays.asList(makePhenopacket("small.json", 0, 0), makePhenopacket("large.json", 4, 2), null));
+
+        assertThat(Arrays.equals(estimates.getCosts(), new double[]{1, 3, 1}), is(true));
+        assertThat(estimates.isInMillis(), is(false));
+        assertThat(estimates.getTimedCount(), is(0));
+    }
+
+    @Test
+    void featureCostsAreCalibratedByTimings() {
+        Map<String, Long> timings = new HashMap<>();
+        timings.put("timed.json", 1000L);
+
+        CaseCostModel.Estimates estimates = new CaseCostModel(timings).estimate(Arrays.asList("timed.json", "untimed.json"),
+                Arrays.asList(makePhenopacket("timed.json", 4, 0), makePhenopacket("untimed.json", 4, 2)));
+
+        // the timed case costs 2 units in 1000 ms
+        assertThat(Arrays.equals(estimates.getCosts(), new double[]{1000, 1500}), is(true));
+        assertThat(estimates.isInMillis(), is(true));
+        assertThat(estimates.getTimedCount(), is(1));
+    }
+}
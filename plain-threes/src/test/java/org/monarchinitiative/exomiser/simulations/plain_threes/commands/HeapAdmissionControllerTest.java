@@ -0,0 +1,146 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.commands;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class HeapAdmissionControllerTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private HeapAdmissionController instance;
+
+    @BeforeEach
+    void setUp() {
+        instance = new HeapAdmissionController(3, .8);
+        // the limit is adjusted only by the tests, not by the garbage collections of the test JVM
+        instance.close();
+    }
+
+    @AfterEach
+    void tearDown() {
+        instance.close();
+    }
+
+    /**
+     * Acquire the slot in a new thread.
+     *
+     * @return latch counted down once the slot is acquired
+     */
+    private CountDownLatch acquireInBackground() {
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                instance.acquire();
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return acquired;
+    }
+
+    @Test
+    void limitIsLoweredAboveTarget() throws InterruptedException {
+        instance.adjust(.9);
+        assertThat(instance.getLimit(), is(2));
+
+        instance.adjust(.9);
+        instance.adjust(.9);
+        assertThat(instance.getLimit(), is(1));
+    }
+
+    @Test
+    void limitIsNotLoweredUntilCasesOverLimitAreFinished() throws InterruptedException {
+        instance.acquire();
+        instance.acquire();
+        instance.acquire();
+        instance.adjust(.9);
+        assertThat(instance.getLimit(), is(2));
+
+        // three cases in flight, over the limit
+        instance.adjust(.9);
+        assertThat(instance.getLimit(), is(2));
+
+        instance.release();
+        instance.adjust(.9);
+        assertThat(instance.getLimit(), is(1));
+    }
+
+    @Test
+    void limitIsRaisedBelowTargetWhenAllSlotsAreUsed() throws InterruptedException {
+        instance.adjust(.9);
+        instance.adjust(.9);
+        assertThat(instance.getLimit(), is(1));
+
+        // within the margin
+        instance.acquire();
+        instance.adjust(.75);
+        assertThat(instance.getLimit(), is(1));
+
+        instance.adjust(.5);
+        assertThat(instance.getLimit(), is(2));
+
+        // a free slot
+        instance.adjust(.5);
+        assertThat(instance.getLimit(), is(2));
+
+        instance.acquire();
+        instance.adjust(.5);
+        assertThat(instance.getLimit(), is(3));
+
+        instance.acquire();
+        instance.adjust(.5);
+        assertThat(instance.getLimit(), is(3));
+    }
+
+    @Test
+    void acquireBlocksUntilRelease() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            instance.acquire();
+            instance.acquire();
+            instance.acquire();
+
+            CountDownLatch acquired = acquireInBackground();
+            assertThat(acquired.await(100, TimeUnit.MILLISECONDS), is(false));
+
+            instance.release();
+            acquired.await();
+        });
+    }
+
+    @Test
+    void acquireBlocksUntilLimitIsRaised() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            instance.adjust(.9);
+            instance.acquire();
+            instance.acquire();
+
+            CountDownLatch acquired = acquireInBackground();
+            assertThat(acquired.await(100, TimeUnit.MILLISECONDS), is(false));
+
+            instance.adjust(.5);
+            acquired.await();
+            assertThat(instance.getLimit(), is(3));
+        });
+    }
+
+    @Test
+    void statisticsHaveLowestLimitAndPeakOccupancy() {
+        instance.adjust(.9);
+        instance.adjust(.95);
+        instance.adjust(.5);
+
+        assertThat(instance.getStatistics(), is("Heap admission: 3 concurrent cases at most, lowest limit 1, final limit 1, peak occupancy after GC 95% (target 80%)"));
+    }
+}
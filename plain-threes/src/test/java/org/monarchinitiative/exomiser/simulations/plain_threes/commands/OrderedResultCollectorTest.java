@@ -0,0 +1,86 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.commands;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class OrderedResultCollectorTest {
+
+    private final StringWriter output = new StringWriter();
+
+    private final OrderedResultCollector instance = new OrderedResultCollector(new BufferedWriter(output));
+
+    private List<String> lines() {
+        String written = output.toString();
+        return written.isEmpty() ? Collections.emptyList() : Arrays.asList(written.split(System.lineSeparator()));
+    }
+
+    @Test
+    void linesAreWrittenInTheOrderOfTheCases() throws IOException {
+        int first = instance.reserve(3);
+
+        instance.add(first + 2, "C");
+        instance.add(first + 1, "B");
+        assertThat(lines(), is(Collections.emptyList()));
+
+        instance.add(first, "A");
+        instance.finish();
+
+        assertThat(lines(), is(Arrays.asList("A", "B", "C")));
+    }
+
+    @Test
+    void skippedCasesDoNotHoldBackTheFollowingCases() throws IOException {
+        int first = instance.reserve(3);
+
+        instance.add(first + 1, "B");
+        instance.skip(first);
+        assertThat(lines(), is(Collections.singletonList("B")));
+
+        instance.add(first + 2, "C");
+        instance.finish();
+
+        assertThat(lines(), is(Arrays.asList("B", "C")));
+        assertThat(instance.getFailedCount(), is(1));
+    }
+
+    @Test
+    void finishFailsIfCaseIsNotFinished() {
+        int first = instance.reserve(2);
+        instance.add(first + 1, "B");
+
+        assertThrows(IllegalStateException.class, instance::finish);
+    }
+
+    @Test
+    void finishFailsIfLineCannotBeWritten() {
+        OrderedResultCollector failing = new OrderedResultCollector(new BufferedWriter(new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                throw new IOException("Disk full");
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        }));
+        failing.add(failing.reserve(1), "A");
+
+        IOException e = assertThrows(IOException.class, failing::finish);
+        assertThat(e.getMessage(), is("Disk full"));
+    }
+}
@@ -0,0 +1,94 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.commands;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class PipelineStageTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+
+    private final List<Integer> failed = Collections.synchronizedList(new ArrayList<>());
+
+    private final BiConsumer<List<Integer>, Throwable> failureHandler = (items, e) -> failed.addAll(items);
+
+    /**
+     * Run the items through a stage with the <code>processor</code> followed by a stage collecting the results.
+     */
+    private void runPipeline(PipelineStage.Processor<Integer, Integer> processor, BiConsumer<List<Integer>, Throwable> failureHandler,
+                             int workers, List<Integer> items) throws InterruptedException {
+        PipelineStage<Integer, Void> collect = new PipelineStage<>("collect", 1, 2, 1,
+                (batch, sink) -> results.addAll(batch), this.failureHandler, null);
+        PipelineStage<Integer, Integer> process = new PipelineStage<>("process", workers, 2, 2, processor, failureHandler, collect);
+        collect.start();
+        process.start();
+        for (Integer item : items) {
+            process.put(item);
+        }
+        process.finish();
+        process.awaitTermination();
+        collect.awaitTermination();
+    }
+
+    @Test
+    void itemsArePassedToTheNextStage() {
+        assertTimeoutPreemptively(TIMEOUT, () -> runPipeline((batch, sink) -> {
+            for (Integer item : batch) {
+                sink.put(item * 10);
+            }
+        }, failureHandler, 3, Arrays.asList(1, 2, 3, 4, 5)));
+
+        List<Integer> sorted = new ArrayList<>(results);
+        Collections.sort(sorted);
+        assertThat(sorted, is(Arrays.asList(10, 20, 30, 40, 50)));
+        assertThat(failed, is(Collections.emptyList()));
+    }
+
+    @Test
+    void failedItemsArePassedToTheFailureHandler() {
+        assertTimeoutPreemptively(TIMEOUT, () -> runPipeline((batch, sink) -> {
+            for (Integer item : batch) {
+                if (item == 2) {
+                    throw new IllegalArgumentException("Bad item");
+                }
+            }
+            for (Integer item : batch) {
+                sink.put(item);
+            }
+        }, failureHandler, 1, Arrays.asList(1, 2, 3, 4, 5)));
+
+        assertThat(failed.contains(2), is(true));
+        assertThat(results.size() + failed.size(), is(5));
+    }
+
+    @Test
+    void pipelineEndsWhenProcessorThrowsError() {
+        assertTimeoutPreemptively(TIMEOUT, () -> runPipeline((batch, sink) -> {
+            throw new StackOverflowError();
+        }, failureHandler, 2, Arrays.asList(1, 2, 3)));
+
+        List<Integer> sorted = new ArrayList<>(failed);
+        Collections.sort(sorted);
+        assertThat(sorted, is(Arrays.asList(1, 2, 3)));
+        assertThat(results, is(Collections.emptyList()));
+    }
+
+    @Test
+    void pipelineEndsWhenFailureHandlerThrowsError() {
+        assertTimeoutPreemptively(TIMEOUT, () -> runPipeline((batch, sink) -> {
+            throw new IllegalStateException("Bad item");
+        }, (items, e) -> {
+            throw new AssertionError("Failure handler failed");
+        }, 2, Arrays.asList(1, 2, 3)));
+
+        assertThat(results, is(Collections.emptyList()));
+    }
+}
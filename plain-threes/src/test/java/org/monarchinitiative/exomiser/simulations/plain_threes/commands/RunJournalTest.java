@@ -0,0 +1,117 @@
+package org.monarchinitiative.exomiser.simulations.plain_threes.commands;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RunJournalTest {
+
+    private Path journalPath;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        journalPath = Files.createTempDirectory("run-journal-test").resolve("journal.tsv");
+    }
+
+    private void writeJournal(String first, String second) throws IOException {
+        try (RunJournal journal = RunJournal.create(journalPath, "abc")) {
+            journal.record("first.json", 100, first);
+            journal.record("second.json", 200, second);
+        }
+    }
+
+    @Test
+    void resumedJournalHasCompletedCases() throws IOException {
+        writeJournal("first.json\t1\t2", "second.json\t3\t4");
+
+        try (RunJournal journal = RunJournal.resume(journalPath, "abc")) {
+            assertThat(journal.getCompletedCount(), is(2));
+            assertThat(journal.isCompleted("first.json"), is(true));
+            assertThat(journal.getRanksLine("second.json"), is("second.json\t3\t4"));
+            assertThat(journal.isCompleted("third.json"), is(false));
+            assertThat(journal.getRanksLine("third.json"), is(nullValue()));
+
+            journal.record("third.json", 300, "third.json\t5\t6");
+        }
+
+        try (RunJournal journal = RunJournal.resume(journalPath, "abc")) {
+            assertThat(journal.getCompletedCount(), is(3));
+            assertThat(journal.getRanksLine("third.json"), is("third.json\t5\t6"));
+        }
+    }
+
+    @Test
+    void missingJournalIsCreated() throws IOException {
+        try (RunJournal journal = RunJournal.resume(journalPath, "abc")) {
+            assertThat(journal.getCompletedCount(), is(0));
+        }
+        assertThat(Files.readAllLines(journalPath), is(Arrays.asList("#fingerprint\tabc")));
+    }
+
+    @Test
+    void resumeFailsIfFingerprintDiffers() throws IOException {
+        writeJournal("first.json\t1", "second.json\t2");
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> RunJournal.resume(journalPath, "xyz"));
+        assertThat(e.getMessage(), is("Journal '" + journalPath + "' was written by a run with configuration 'abc', not 'xyz'"));
+    }
+
+    @Test
+    void resumeFailsIfJournalHasNoFingerprint() throws IOException {
+        Files.write(journalPath, "first.json\t100\tfirst.json\t1\n".getBytes(StandardCharsets.UTF_8));
+
+        assertThrows(IllegalArgumentException.class, () -> RunJournal.resume(journalPath, "abc"));
+    }
+
+    @Test
+    void tornLastLineIsDropped() throws IOException {
+        writeJournal("first.json\t1", "second.json\t2");
+        // crash while writing the line of the third case
+        Files.write(journalPath, "third.json\t30".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (RunJournal journal = RunJournal.resume(journalPath, "abc")) {
+            assertThat(journal.getCompletedCount(), is(2));
+            assertThat(journal.isCompleted("third.json"), is(false));
+
+            journal.record("third.json", 300, "third.json\t3");
+        }
+
+        assertThat(Files.readAllLines(journalPath), is(Arrays.asList(
+                "#fingerprint\tabc",
+                "first.json\t100\tfirst.json\t1",
+                "second.json\t200\tsecond.json\t2",
+                "third.json\t300\tthird.json\t3")));
+    }
+
+    @Test
+    void timingsAreReadRegardlessOfFingerprint() throws IOException {
+        writeJournal("first.json\t1", "second.json\t2");
+        Files.write(journalPath, "third.json\t3".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        Map<String, Long> timings = RunJournal.readTimings(journalPath);
+
+        assertThat(timings.size(), is(2));
+        assertThat(timings.get("first.json"), is(100L));
+        assertThat(timings.get("second.json"), is(200L));
+    }
+
+    @Test
+    void readTimingsFailsOnInvalidTime() throws IOException {
+        Files.write(journalPath, "#fingerprint\tabc\nfirst.json\tslow\tfirst.json\t1\n".getBytes(StandardCharsets.UTF_8));
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> RunJournal.readTimings(journalPath));
+        assertThat(e.getMessage(), is("Invalid analysis time in line 2 of journal '" + journalPath + "'"));
+    }
+}
@@ -12,8 +12,18 @@ import org.monarchinitiative.exomiser.core.model.Gene;
 import org.monarchinitiative.exomiser.core.model.frequency.FrequencySource;
 import org.monarchinitiative.exomiser.core.model.pathogenicity.PathogenicitySource;
 import org.monarchinitiative.exomiser.simulations.cli.Utils;
+import org.monarchinitiative.exomiser.simulations.cli.simulators.CachingVcfSimulator;
+import org.monarchinitiative.exomiser.simulations.cli.simulators.ContigParallelVcfSimulator;
+import org.monarchinitiative.exomiser.simulations.cli.simulators.GenomicRegion;
+import org.monarchinitiative.exomiser.simulations.cli.simulators.InMemoryVcfSimulator;
+import org.monarchinitiative.exomiser.simulations.cli.simulators.PooledVcfSimulator;
+import org.monarchinitiative.exomiser.simulations.cli.simulators.PreRenderedVcfSimulator;
+import org.monarchinitiative.exomiser.simulations.cli.simulators.RegionSet;
+import org.monarchinitiative.exomiser.simulations.cli.simulators.ScratchDirectory;
 import org.monarchinitiative.exomiser.simulations.cli.simulators.SingleVcfSimulator;
+import org.monarchinitiative.exomiser.simulations.cli.simulators.TemplatePool;
 import org.monarchinitiative.exomiser.simulations.cli.simulators.VcfSimulator;
+import org.monarchinitiative.exomiser.simulations.cli.simulators.VcfTemplate;
 import org.phenopackets.schema.v1.Phenopacket;
 import org.phenopackets.schema.v1.core.PhenotypicFeature;
 import org.slf4j.Logger;
@@ -26,10 +36,13 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Component
 public class LiricalCommand implements ApplicationRunner {
@@ -90,6 +103,86 @@ public class LiricalCommand implements ApplicationRunner {
 
     private Path templateVcfPath;
 
+    /**
+     * Name of the {@link VcfSimulator} implementation used to create the simulated VCF files.
+     */
+    private String simulatorName = "single";
+
+    /**
+     * Write the simulated VCF files block-compressed, with tabix index.
+     */
+    private boolean compressVcf = false;
+
+    /**
+     * Directory where the simulated VCF files are cached across the runs, no caching if <code>null</code>.
+     */
+    private Path vcfCacheDirectory;
+
+    /**
+     * Budget of the VCF cache in bytes.
+     */
+    private long vcfCacheSize = Long.MAX_VALUE;
+
+    /**
+     * Directory where the per-run scratch directory is created, e.g. on <code>tmpfs</code>.
+     */
+    private Path scratchDirectoryParent = Paths.get(System.getProperty("java.io.tmpdir"));
+
+    /**
+     * Maximum number of records kept in memory while sorting unsorted template.
+     */
+    private int sortMaxRecordsInRam = SingleVcfSimulator.DEFAULT_MAX_RECORDS_IN_RAM;
+
+    /**
+     * Number of threads used by the simulator, if the simulator supports it.
+     */
+    private int simulationThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Pool file of the background templates used by the <code>pooled</code> simulator.
+     */
+    private Path templatePoolPath;
+
+    /**
+     * Directory with the template VCF files the pool is built from if the pool file does not exist yet.
+     */
+    private Path templatePoolVcfDirectory;
+
+    /**
+     * Seed of the template choice of the <code>pooled</code> simulator.
+     */
+    private long templateSeed = 0;
+
+    /**
+     * BED file with the regions the template records are restricted to, all the records are used if <code>null</code>.
+     */
+    private Path regionsPath;
+
+    /**
+     * Names of the BED regions to use, e.g. gene symbols of a gene panel. All the regions are used if empty.
+     */
+    private Set<String> regionGenes = new HashSet<>();
+
+    /**
+     * Number of bases added on each side of the regions.
+     */
+    private int regionFlank = 0;
+
+    /**
+     * Index of the shard of the phenopackets run by this process, see {@link Utils#isInShard(String, int, int)}.
+     */
+    private int shardIndex = 0;
+
+    /**
+     * Number of the shards the phenopackets are split into.
+     */
+    private int shardCount = 1;
+
+    /**
+     * Wall-clock budget for the analysis of a case in seconds, <code>0</code> if unlimited.
+     */
+    private long caseTimeoutSeconds = 0;
+
     private Path phenopacketDirectoryPath;
 
     private List<String> resultlist=new ArrayList<>();
@@ -133,90 +226,213 @@ public class LiricalCommand implements ApplicationRunner {
             LOGGER.warn("Phenopacket file array is null. This should not happen");
             return;
         }
-        List<File> phenopackets = Arrays.asList(fileArray);
-        for (File phenopacketFilePath : phenopackets) {
-            // -----------------------    READ PHENOPACKET    --------------------------------------
-            LOGGER.info("Reading phenopacket from '{}'", phenopacketFilePath);
-            Phenopacket pp;
-            pp = Utils.readPhenopacket(phenopacketFilePath.toPath());
-            if (pp.getSubject().getId().isEmpty()) {
-                LOGGER.warn("Phenopacket subject's ID must not be empty. Unable to continue");
-                System.exit(1);
-            }
+        List<File> phenopackets = new ArrayList<>(Arrays.asList(fileArray));
+        Utils.retainShard(phenopackets, File::getName, shardIndex, shardCount);
+        // runs the analyses if `--case-timeout` is set
+        AnalysisBudget budget = caseTimeoutSeconds == 0 ? null : new AnalysisBudget(caseTimeoutSeconds);
+        try (ScratchDirectory scratchDirectory = ScratchDirectory.create(scratchDirectoryParent);
+             VcfSimulator simulator = createSimulator(scratchDirectory)) {
+            for (File phenopacketFilePath : phenopackets) {
+                // -----------------------    READ PHENOPACKET    --------------------------------------
+                LOGGER.info("Reading phenopacket from '{}'", phenopacketFilePath);
+                Phenopacket pp;
+                pp = Utils.readPhenopacket(phenopacketFilePath.toPath());
+                if (pp.getSubject().getId().isEmpty()) {
+                    LOGGER.warn("Phenopacket subject's ID must not be empty. Unable to continue");
+                    System.exit(1);
+                }
 
-            if (pp.getGenesCount() != 1) {
-                LOGGER.error("[ERROR] Phenopackets used for simulation MUST have exactly one gene");
-                System.exit(1);
-            }
-            String entrezString = pp.getGenes(0).getId();
-            if (entrezString.indexOf("ENTREZ:") >= 0) {
-                entrezString = entrezString.substring(7);
-            }
-            int entrezId = Integer.parseInt(entrezString);
+                if (pp.getGenesCount() != 1) {
+                    LOGGER.error("[ERROR] Phenopackets used for simulation MUST have exactly one gene");
+                    System.exit(1);
+                }
+                String entrezString = pp.getGenes(0).getId();
+                if (entrezString.indexOf("ENTREZ:") >= 0) {
+                    entrezString = entrezString.substring(7);
+                }
+                int entrezId = Integer.parseInt(entrezString);
 
-            String symbol = pp.getGenes(0).getSymbol();
-            if (pp.getDiseasesCount()!=1) {
-                LOGGER.error("[ERROR] Phenopackets used for simulation MUST have exactly one disease");
-                System.exit(1);
-            }
-            String diseaseId = pp.getDiseases(0).getTerm().getId();
-            String diseaseLabel = pp.getDiseases(0).getTerm().getLabel();
-
-            // -----------------------    CREATE THE SIMULATED VCF FILE    -------------------------
-            LOGGER.info("Creating simulated VCF file");
-            VcfSimulator simulator = new SingleVcfSimulator(templateVcfPath);
-            Path vcfPath = simulator.simulateVcfWithPhenopacket(pp);
-
-
-            // -----------------------    FORGE EXOMISER ANALYSIS    -------------------------------
-            LOGGER.info("Creating analysis");
-            // This analysis is optimised for *exomes* if running a genome sample we need a different configuration.
-            Analysis analysis = exomiser.getAnalysisBuilder()
-                    .genomeAssembly(GenomeAssembly.HG19)
-                    .vcfPath(vcfPath)
-                    .probandSampleName(pp.getSubject().getId())
-                    .hpoIds(getPresentPhenotypesAsHpoStrings(pp))
-                    .analysisMode(AnalysisMode.PASS_ONLY)
-                    .inheritanceModes(INHERITANCE_MODE_OPTIONS)
-                    .frequencySources(FREQUENCY_SOURCES)
-                    .pathogenicitySources(EnumSet.of(PathogenicitySource.REVEL, PathogenicitySource.MVP))
-                    // adds an exome mask
-                    .addVariantEffectFilter(NON_EXONIC_EFFECTS)
-                    .addFailedVariantFilter()
-                    // frequency filter max will be automatically derived from the inheritance mode options
-                    .addFrequencyFilter()
-                    .addPathogenicityFilter(true)
-                    .addInheritanceFilter()
-                    .addOmimPrioritiser()
-                    .addHiPhivePrioritiser()
-                    .build();
-
-
-            // -----------------------    RUN THE ANALYSIS AND WRITE THE RESULTS    ----------------
-            LOGGER.info("Running the analysis");
-            final AnalysisResults results = exomiser.run(analysis);
-            List<Gene> genescores = results.getGenes();
-            int rank = 0;
-            for (Gene gene : genescores) {
-                int entrez = gene.getEntrezGeneID();
-                String symb = gene.getGeneSymbol();
-                rank++;
-                if (entrez == entrezId) {
-                    // this is the rank of the target gene
-                    String res = String.format("[INFO] Rank of gene %s [%s;%s] was %d", symb,diseaseLabel,diseaseId,rank);
+                String symbol = pp.getGenes(0).getSymbol();
+                if (pp.getDiseasesCount()!=1) {
+                    LOGGER.error("[ERROR] Phenopackets used for simulation MUST have exactly one disease");
+                    System.exit(1);
+                }
+                String diseaseId = pp.getDiseases(0).getTerm().getId();
+                String diseaseLabel = pp.getDiseases(0).getTerm().getLabel();
+
+                // -----------------------    CREATE THE SIMULATED VCF FILE    -------------------------
+                LOGGER.info("Creating simulated VCF file");
+                Path vcfPath = simulator.simulateVcfWithPhenopacket(pp);
+
+
+                // -----------------------    FORGE EXOMISER ANALYSIS    -------------------------------
+                LOGGER.info("Creating analysis");
+                // This analysis is optimised for *exomes* if running a genome sample we need a different configuration.
+                Analysis analysis = exomiser.getAnalysisBuilder()
+                        .genomeAssembly(GenomeAssembly.HG19)
+                        .vcfPath(vcfPath)
+                        .probandSampleName(pp.getSubject().getId())
+                        .hpoIds(getPresentPhenotypesAsHpoStrings(pp))
+                        .analysisMode(AnalysisMode.PASS_ONLY)
+                        .inheritanceModes(INHERITANCE_MODE_OPTIONS)
+                        .frequencySources(FREQUENCY_SOURCES)
+                        .pathogenicitySources(EnumSet.of(PathogenicitySource.REVEL, PathogenicitySource.MVP))
+                        // adds an exome mask
+                        .addVariantEffectFilter(NON_EXONIC_EFFECTS)
+                        .addFailedVariantFilter()
+                        // frequency filter max will be automatically derived from the inheritance mode options
+                        .addFrequencyFilter()
+                        .addPathogenicityFilter(true)
+                        .addInheritanceFilter()
+                        .addOmimPrioritiser()
+                        .addHiPhivePrioritiser()
+                        .build();
+
+
+                // -----------------------    RUN THE ANALYSIS AND WRITE THE RESULTS    ----------------
+                LOGGER.info("Running the analysis");
+                final AnalysisResults results;
+                try {
+                    results = budget == null ? exomiser.run(analysis) : budget.run(() -> exomiser.run(analysis));
+                } catch (TimeoutException e) {
+                    String res = String.format("[INFO] Rank of gene %s [%s;%s] was TIMEOUT", symbol, diseaseLabel, diseaseId);
                     System.out.println(res);
                     resultlist.add(res);
-                    rankCountMap.putIfAbsent(rank,0);
-                    int c = 1 + rankCountMap.get(rank);
-                    rankCountMap.put(rank,c);
+                    continue;
+                } finally {
+                    // the simulated VCF file is not needed once the analysis is over or abandoned
+                    try {
+                        scratchDirectory.release(vcfPath);
+                    } catch (IOException e) {
+                        LOGGER.warn("Unable to delete simulated VCF file '{}': {}", vcfPath, e.getMessage());
+                    }
+                    if (simulator instanceof CachingVcfSimulator) {
+                        ((CachingVcfSimulator) simulator).release(vcfPath);
+                    }
+                }
+                List<Gene> genescores = results.getGenes();
+                int rank = 0;
+                for (Gene gene : genescores) {
+                    int entrez = gene.getEntrezGeneID();
+                    String symb = gene.getGeneSymbol();
+                    rank++;
+                    if (entrez == entrezId) {
+                        // this is the rank of the target gene
+                        String res = String.format("[INFO] Rank of gene %s [%s;%s] was %d", symb,diseaseLabel,diseaseId,rank);
+                        System.out.println(res);
+                        resultlist.add(res);
+                        rankCountMap.putIfAbsent(rank,0);
+                        int c = 1 + rankCountMap.get(rank);
+                        rankCountMap.put(rank,c);
+                    }
                 }
-            }
 
-            System.out.println(results);
+                System.out.println(results);
+            }
+            if (simulator instanceof CachingVcfSimulator) {
+                LOGGER.info(((CachingVcfSimulator) simulator).getStatistics());
+            }
+            if (budget != null && budget.getTimedOutCount() > 0) {
+                LOGGER.warn("{} case(s) exceeded the {}s budget and were recorded as TIMEOUT", budget.getTimedOutCount(), caseTimeoutSeconds);
+            }
+        } finally {
+            if (budget != null) {
+                budget.close();
+            }
         }
         printOutSimulationResults();
     }
 
+    /**
+     * @return {@link VcfSimulator} selected by the `--simulator` argument
+     */
+    private VcfSimulator createSimulator(ScratchDirectory scratchDirectory) throws IOException {
+        RegionSet regions = loadRegions();
+        VcfSimulator simulator = createTemplateSimulator(scratchDirectory, regions);
+        if (vcfCacheDirectory == null) {
+            return simulator;
+        }
+        return CachingVcfSimulator.builder()
+                .setDelegate(simulator)
+                .setScratchDirectory(scratchDirectory)
+                .setTemplateVcfPath(simulatorName.equals("pooled") ? templatePoolPath : templateVcfPath)
+                .setCacheDirectory(vcfCacheDirectory)
+                .setMaxCacheSize(vcfCacheSize)
+                .setOutputSuffix(compressVcf ? ".vcf.gz" : ".vcf")
+                .setParameters(simulatorName.equals("pooled")
+                        ? "seed=" + templateSeed
+                        : regions == null ? "" : "regions=" + regions)
+                .build();
+    }
+
+    /**
+     * @return the pool selected by the `--template-pool` argument, built from the `--template-pool-vcfs` directory if
+     * the pool file does not exist yet
+     */
+    private TemplatePool openTemplatePool() throws IOException {
+        if (Files.isRegularFile(templatePoolPath)) {
+            return TemplatePool.open(templatePoolPath);
+        }
+        List<Path> templates;
+        try (Stream<Path> files = Files.list(templatePoolVcfDirectory)) {
+            templates = files.filter(file -> file.toString().endsWith(".vcf") || file.toString().endsWith(".vcf.gz"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        LOGGER.info("Building pool '{}' of {} templates from '{}'", templatePoolPath, templates.size(), templatePoolVcfDirectory);
+        return TemplatePool.build(templates, templatePoolPath);
+    }
+
+    /**
+     * @return regions selected by the `--regions` and `--region-genes` arguments, <code>null</code> if the template
+     * records are not restricted
+     */
+    private RegionSet loadRegions() throws IOException {
+        if (regionsPath == null) {
+            return null;
+        }
+        List<GenomicRegion> regions = GenomicRegion.readBedFile(regionsPath);
+        if (!regionGenes.isEmpty()) {
+            regions = regions.stream()
+                    .filter(region -> regionGenes.contains(region.getName()))
+                    .collect(Collectors.toList());
+            Set<String> found = regions.stream().map(GenomicRegion::getName).collect(Collectors.toSet());
+            for (String gene : regionGenes) {
+                if (!found.contains(gene)) {
+                    LOGGER.warn("No region named '{}' in '{}'", gene, regionsPath);
+                }
+            }
+        }
+        RegionSet regionSet = RegionSet.of(regions, regionFlank);
+        LOGGER.info("Restricting template to {} regions from '{}' with {} bp flank", regionSet.size(), regionsPath, regionFlank);
+        return regionSet;
+    }
+
+    private VcfSimulator createTemplateSimulator(ScratchDirectory scratchDirectory, RegionSet regions) throws IOException {
+        switch (simulatorName) {
+            case "in-memory":
+                // the template is parsed once and shared by all the simulated cases
+                return new InMemoryVcfSimulator(VcfTemplate.load(templateVcfPath), scratchDirectory);
+            case "pre-rendered":
+                // the template records are encoded once, only the injected variants are encoded for each case
+                return PreRenderedVcfSimulator.prerender(templateVcfPath, scratchDirectory, sortMaxRecordsInRam);
+            case "pooled":
+                // each case is simulated on a template drawn from the memory-mapped pool
+                return new PooledVcfSimulator(openTemplatePool(), templateSeed, scratchDirectory);
+            case "contig-parallel":
+                // the contigs of indexed template are processed in parallel
+                return new ContigParallelVcfSimulator(templateVcfPath, scratchDirectory, simulationThreads);
+            case "single":
+            default:
+                return SingleVcfSimulator.builder()
+                        .setTemplateVcfPath(templateVcfPath)
+                        .setCompressOutput(compressVcf)
+                        .setScratchDirectory(scratchDirectory)
+                        .setMaxRecordsInRam(sortMaxRecordsInRam)
+                        .setRegions(regions)
+                        .build();
+        }
+    }
 
     private void printOutSimulationResults() {
         try {
@@ -267,12 +483,150 @@ public class LiricalCommand implements ApplicationRunner {
             return false;
         }
 
-        // Template VCF file
-        if (!args.containsOption("vcf")) {
+        // Template VCF file, not needed by the 'pooled' simulator
+        if (args.containsOption("vcf")) {
+            templateVcfPath = Paths.get(args.getOptionValues("vcf").get(0));
+        }
+
+        // Simulator implementation
+        if (args.containsOption("simulator")) {
+            simulatorName = args.getOptionValues("simulator").get(0);
+            if (!Arrays.asList("single", "in-memory", "pre-rendered", "contig-parallel", "pooled").contains(simulatorName)) {
+                LOGGER.warn("Unknown simulator '{}'. Use one of 'single', 'in-memory', 'pre-rendered', 'contig-parallel', 'pooled'", simulatorName);
+                return false;
+            }
+        }
+        if (simulatorName.equals("pooled")) {
+            if (!args.containsOption("template-pool")) {
+                LOGGER.warn("Missing '--template-pool' argument for the pool file of the 'pooled' simulator");
+                return false;
+            }
+            templatePoolPath = Paths.get(args.getOptionValues("template-pool").get(0));
+            if (args.containsOption("template-pool-vcfs")) {
+                templatePoolVcfDirectory = Paths.get(args.getOptionValues("template-pool-vcfs").get(0));
+            }
+            if (!Files.isRegularFile(templatePoolPath) && (templatePoolVcfDirectory == null || !Files.isDirectory(templatePoolVcfDirectory))) {
+                LOGGER.warn("Pool file '{}' does not exist, use '--template-pool-vcfs' to point to directory with the template VCF files to build it from", templatePoolPath);
+                return false;
+            }
+            if (args.containsOption("template-seed")) {
+                try {
+                    templateSeed = Long.parseLong(args.getOptionValues("template-seed").get(0));
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Invalid '--template-seed' argument: {}", e.getMessage());
+                    return false;
+                }
+            }
+        } else if (templateVcfPath == null) {
             LOGGER.warn("Missing '--vcf' argument for template VCF file path");
             return false;
         }
-        templateVcfPath = Paths.get(args.getOptionValues("vcf").get(0));
+
+        compressVcf = args.containsOption("compress-vcf");
+        if (compressVcf && !simulatorName.equals("single")) {
+            LOGGER.warn("'--compress-vcf' is supported only by the 'single' simulator");
+            return false;
+        }
+
+        // Persistent cache of the simulated VCF files
+        if (args.containsOption("vcf-cache-dir")) {
+            vcfCacheDirectory = Paths.get(args.getOptionValues("vcf-cache-dir").get(0));
+        }
+        if (args.containsOption("vcf-cache-size")) {
+            try {
+                vcfCacheSize = CachingVcfSimulator.parseSize(args.getOptionValues("vcf-cache-size").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Invalid '--vcf-cache-size' argument: {}", e.getMessage());
+                return false;
+            }
+        }
+
+        // Scratch directory for the simulated VCF files
+        if (args.containsOption("scratch-dir")) {
+            scratchDirectoryParent = Paths.get(args.getOptionValues("scratch-dir").get(0));
+        }
+
+        // Memory budget for sorting unsorted template
+        if (args.containsOption("sort-max-records-in-ram")) {
+            try {
+                sortMaxRecordsInRam = Integer.parseInt(args.getOptionValues("sort-max-records-in-ram").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Invalid '--sort-max-records-in-ram' argument: {}", e.getMessage());
+                return false;
+            }
+        }
+
+        // Threads used by the simulator
+        if (args.containsOption("simulation-threads")) {
+            try {
+                simulationThreads = Integer.parseInt(args.getOptionValues("simulation-threads").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Invalid '--simulation-threads' argument: {}", e.getMessage());
+                return false;
+            }
+            if (simulationThreads < 1) {
+                LOGGER.warn("'--simulation-threads' must be a positive number");
+                return false;
+            }
+        }
+
+        // Regions the template records are restricted to
+        if (args.containsOption("regions")) {
+            regionsPath = Paths.get(args.getOptionValues("regions").get(0));
+            if (!simulatorName.equals("single")) {
+                LOGGER.warn("'--regions' is supported only by the 'single' simulator");
+                return false;
+            }
+        }
+        if (args.containsOption("region-genes")) {
+            if (regionsPath == null) {
+                LOGGER.warn("'--region-genes' requires '--regions' BED file with gene symbols in the name column");
+                return false;
+            }
+            for (String genes : args.getOptionValues("region-genes")) {
+                for (String gene : genes.split(",")) {
+                    if (!gene.trim().isEmpty()) {
+                        regionGenes.add(gene.trim());
+                    }
+                }
+            }
+        }
+        if (args.containsOption("region-flank")) {
+            try {
+                regionFlank = Integer.parseInt(args.getOptionValues("region-flank").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Invalid '--region-flank' argument: {}", e.getMessage());
+                return false;
+            }
+            if (regionFlank < 0) {
+                LOGGER.warn("'--region-flank' must not be negative");
+                return false;
+            }
+        }
+
+        // Wall-clock budget of the analysis of a case
+        if (args.containsOption("case-timeout")) {
+            try {
+                caseTimeoutSeconds = Long.parseLong(args.getOptionValues("case-timeout").get(0));
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Invalid '--case-timeout' argument: {}", e.getMessage());
+                return false;
+            }
+            if (caseTimeoutSeconds < 0) {
+                LOGGER.warn("'--case-timeout' must not be negative");
+                return false;
+            }
+        }
+
+        // Slice of the phenopackets run by this process
+        try {
+            int[] shard = Utils.parseShardOptions(args.getOptionValues("shard-index"), args.getOptionValues("shard-count"));
+            shardIndex = shard[0];
+            shardCount = shard[1];
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn(e.getMessage());
+            return false;
+        }
 
         return true;
     }
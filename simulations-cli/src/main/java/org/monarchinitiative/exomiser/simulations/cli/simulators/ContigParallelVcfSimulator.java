@@ -0,0 +1,194 @@
+package org.monarchinitiative.exomiser.simulations.cli.simulators;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextComparator;
+import htsjdk.variant.vcf.VCFContigHeaderLine;
+import htsjdk.variant.vcf.VCFEncoder;
+import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeader;
+import org.monarchinitiative.exomiser.simulations.cli.Utils;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * Simulator that processes each contig of an indexed template independently on a {@link ForkJoinPool}.
+ * <p>
+ * Records of each contig are queried from the template by the index, merged with the injected variants located on
+ * the contig and written into a chunk file. The chunks are concatenated in the order of the contigs in the template
+ * header, which is the order used by {@link VariantContextComparator}. The output is the same as the output of
+ * {@link SingleVcfSimulator} for sorted template.
+ * </p>
+ * <p>
+ * The simulator owns the pool, hence it must be {@link #close() closed} once it is not needed anymore.
+ * </p>
+ */
+public class ContigParallelVcfSimulator implements VcfSimulator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContigParallelVcfSimulator.class);
+
+    private final Path templateVcfPath;
+
+    private final VCFHeader templateHeader;
+
+    private final VariantContextComparator comparator;
+
+    private final ScratchDirectory scratchDirectory;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param templateVcfPath  {@link Path} to sorted VCF file with index
+     * @param scratchDirectory directory where the chunks and the simulated VCF files are created
+     * @param threads          number of contigs processed in parallel
+     * @throws IllegalArgumentException if the template is not indexed
+     */
+    public ContigParallelVcfSimulator(Path templateVcfPath, ScratchDirectory scratchDirectory, int threads) {
+        if (!SingleVcfSimulator.isIndexed(templateVcfPath)) {
+            throw new IllegalArgumentException("Template VCF file '" + templateVcfPath + "' is not indexed");
+        }
+        this.templateVcfPath = templateVcfPath;
+        try (VCFFileReader reader = new VCFFileReader(templateVcfPath, true)) {
+            this.templateHeader = reader.getFileHeader();
+        }
+        this.comparator = new VariantContextComparator(templateHeader.getContigLines());
+        this.scratchDirectory = scratchDirectory;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    @Override
+    public Path simulateVcfWithPhenopacket(Phenopacket phenopacket) throws IOException {
+        final String sampleId = phenopacket.getSubject().getId().replaceAll("\\s+", "_");
+        final Path outPath = scratchDirectory.createFile("contig-parallel-vcf-simulators-" + sampleId + "-", ".vcf");
+
+        VCFHeader header = SingleVcfSimulator.updateHeaderWithPhenopacketSample(templateHeader, sampleId);
+        Map<String, List<VariantContext>> injectedByContig = Utils.phenopacketToVariantContexts(phenopacket.getVariantsList(), sampleId).stream()
+                .sorted(comparator)
+                .collect(Collectors.groupingBy(VariantContext::getContig, LinkedHashMap::new, Collectors.toList()));
+        UnaryOperator<VariantContext> sampleRenamer = SingleVcfSimulator.sampleRenamer(templateHeader, sampleId);
+
+        List<Callable<ContigChunk>> tasks = new ArrayList<>();
+        for (VCFContigHeaderLine contig : templateHeader.getContigLines()) {
+            List<VariantContext> injected = injectedByContig.getOrDefault(contig.getID(), Collections.emptyList());
+            tasks.add(() -> writeChunk(contig.getID(), injected, header, sampleRenamer));
+        }
+
+        List<ContigChunk> chunks = new ArrayList<>(tasks.size());
+        int cnt = 0;
+        try {
+            // all the tasks are done once invokeAll returns, the chunks of the successful ones are collected even if
+            // another task failed, so that they are released below
+            IOException failure = null;
+            for (Future<ContigChunk> future : pool.invokeAll(tasks)) {
+                try {
+                    chunks.add(future.get());
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = new IOException("Unable to simulate VCF for '" + sampleId + "'", e.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            try (FileChannel out = FileChannel.open(outPath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                PreRenderedVcfSimulator.writeFully(out, PreRenderedVcfSimulator.renderHeader(header));
+                for (ContigChunk chunk : chunks) {
+                    if (chunk.path == null) {
+                        continue;
+                    }
+                    try (FileChannel in = FileChannel.open(chunk.path, StandardOpenOption.READ)) {
+                        PreRenderedVcfSimulator.transfer(in, 0, in.size(), out);
+                    }
+                    cnt += chunk.variantCount;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            scratchDirectory.release(outPath);
+            throw new IOException("Interrupted while simulating VCF for '" + sampleId + "'", e);
+        } catch (IOException | RuntimeException e) {
+            scratchDirectory.release(outPath);
+            throw e;
+        } finally {
+            for (ContigChunk chunk : chunks) {
+                if (chunk.path != null) {
+                    scratchDirectory.release(chunk.path);
+                }
+            }
+        }
+        LOGGER.info("Created VCF containing {} variants", cnt);
+        scratchDirectory.written(outPath);
+        return outPath;
+    }
+
+    /**
+     * Shut the pool down, the simulator must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * Write records of the <code>contig</code> merged with the <code>injected</code> variants into a chunk file.
+     *
+     * @return the chunk, with <code>null</code> path if there is nothing to write
+     */
+    private ContigChunk writeChunk(String contig, List<VariantContext> injected, VCFHeader header,
+                                   UnaryOperator<VariantContext> sampleRenamer) throws IOException {
+        // readers and encoders are not thread-safe, hence each task uses its own
+        try (VCFFileReader reader = new VCFFileReader(templateVcfPath, true);
+             CloseableIterator<VariantContext> records = reader.query(contig, 1, Integer.MAX_VALUE)) {
+            if (!records.hasNext() && injected.isEmpty()) {
+                return new ContigChunk(null, 0);
+            }
+            VCFEncoder encoder = new VCFEncoder(header, true, false);
+            Path chunkPath = scratchDirectory.createFile("contig-chunk-" + contig + "-", ".vcf");
+            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(chunkPath))) {
+                int cnt = SingleVcfSimulator.mergeSorted(records, injected, comparator, vc -> {
+                    try {
+                        os.write((encoder.encode(sampleRenamer.apply(vc)) + "\n").getBytes(VCFEncoder.VCF_CHARSET));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                os.flush();
+                scratchDirectory.written(chunkPath);
+                return new ContigChunk(chunkPath, cnt);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private static class ContigChunk {
+
+        private final Path path;
+
+        private final int variantCount;
+
+        private ContigChunk(Path path, int variantCount) {
+            this.path = path;
+            this.variantCount = variantCount;
+        }
+    }
+}
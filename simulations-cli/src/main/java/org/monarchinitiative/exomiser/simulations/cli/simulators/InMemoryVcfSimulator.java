@@ -0,0 +1,87 @@
+package org.monarchinitiative.exomiser.simulations.cli.simulators;
+
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFHeader;
+import org.monarchinitiative.exomiser.simulations.cli.Utils;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Simulator that injects variants defined from {@link Phenopacket} among variants of a {@link VcfTemplate} which has
+ * been loaded into memory beforehand.
+ * <p>
+ * The template is decoded and sorted only once, hence the only per-case work apart from writing the output is the
+ * placement of the injected variants.
+ * </p>
+ */
+public class InMemoryVcfSimulator implements VcfSimulator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryVcfSimulator.class);
+
+    private final VcfTemplate template;
+
+    private final ScratchDirectory scratchDirectory;
+
+    public InMemoryVcfSimulator(VcfTemplate template) {
+        this(template, ScratchDirectory.getDefault());
+    }
+
+    /**
+     * @param template         template shared by all the simulations
+     * @param scratchDirectory directory where the simulated VCF files are created
+     */
+    public InMemoryVcfSimulator(VcfTemplate template, ScratchDirectory scratchDirectory) {
+        this.template = template;
+        this.scratchDirectory = scratchDirectory;
+    }
+
+    @Override
+    public Path simulateVcfWithPhenopacket(Phenopacket phenopacket) throws IOException {
+
+        final String sampleId = phenopacket.getSubject().getId().replaceAll("\\s+", "_");
+        // we create a temporary VCF file for Exomiser analysis
+        final File outPath = scratchDirectory.createFile("in-memory-vcf-simulators-" + sampleId + "-", ".vcf").toFile();
+
+        final UnaryOperator<VariantContext> sampleRenamer = SingleVcfSimulator.sampleRenamer(template.getHeader(), sampleId);
+
+        try (VariantContextWriter writer = new VariantContextWriterBuilder()
+                .setOutputFile(outPath)
+                .setOutputFileType(VariantContextWriterBuilder.OutputType.VCF)
+                .setOption(Options.ALLOW_MISSING_FIELDS_IN_HEADER)
+                .unsetOption(Options.INDEX_ON_THE_FLY)
+                .build()) {
+            VCFHeader fileHeader = SingleVcfSimulator.updateHeaderWithPhenopacketSample(template.getHeader(), sampleId);
+            writer.writeHeader(fileHeader);
+
+            List<VariantContext> injected = Utils.phenopacketToVariantContexts(phenopacket.getVariantsList(), sampleId);
+            injected.sort(template.getComparator());
+
+            List<VariantContext> variants = template.getVariants();
+            int from = 0;
+            for (VariantContext vc : injected) {
+                int to = template.insertionPoint(vc);
+                for (int i = from; i < to; i++) {
+                    writer.add(sampleRenamer.apply(variants.get(i)));
+                }
+                writer.add(vc);
+                from = to;
+            }
+            for (int i = from; i < variants.size(); i++) {
+                writer.add(sampleRenamer.apply(variants.get(i)));
+            }
+            LOGGER.info("Created VCF containing {} variants", variants.size() + injected.size());
+        }
+        scratchDirectory.written(outPath.toPath());
+        return outPath.toPath();
+    }
+}
@@ -0,0 +1,109 @@
+package org.monarchinitiative.exomiser.simulations.cli.simulators;
+
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFEncoder;
+import htsjdk.variant.vcf.VCFHeader;
+import org.monarchinitiative.exomiser.simulations.cli.Utils;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Simulator that injects variants defined from {@link Phenopacket} into a template drawn at random from a
+ * {@link TemplatePool}.
+ * <p>
+ * The template is chosen by the seed and by the sample ID, hence the same case sits on the same template in every run
+ * with the same seed, regardless of the order the cases are simulated in.
+ * </p>
+ */
+public class PooledVcfSimulator implements VcfSimulator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PooledVcfSimulator.class);
+
+    private final TemplatePool pool;
+
+    private final long seed;
+
+    private final ScratchDirectory scratchDirectory;
+
+    /**
+     * @param pool             pool of the templates
+     * @param seed             seed of the template choice
+     * @param scratchDirectory directory where the simulated VCF files are created
+     */
+    public PooledVcfSimulator(TemplatePool pool, long seed, ScratchDirectory scratchDirectory) {
+        if (pool.size() == 0) {
+            throw new IllegalArgumentException("Template pool must not be empty");
+        }
+        this.pool = pool;
+        this.seed = seed;
+        this.scratchDirectory = scratchDirectory;
+    }
+
+    /**
+     * @param sampleId ID of the simulated sample
+     * @return index of the template the sample is simulated on
+     */
+    public int chooseTemplate(String sampleId) {
+        return new Random(seed * 31 + sampleId.hashCode()).nextInt(pool.size());
+    }
+
+    @Override
+    public Path simulateVcfWithPhenopacket(Phenopacket phenopacket) throws IOException {
+        final String sampleId = phenopacket.getSubject().getId().replaceAll("\\s+", "_");
+        final int template = chooseTemplate(sampleId);
+        LOGGER.info("Simulating '{}' on template '{}'", sampleId, pool.getTemplateName(template));
+        final Path outPath = scratchDirectory.createFile("pooled-vcf-simulators-" + sampleId + "-", ".vcf");
+
+        VCFHeader header = pool.createHeader(sampleId);
+        VCFEncoder encoder = new VCFEncoder(header, true, false);
+        List<VariantContext> injected = Utils.phenopacketToVariantContexts(phenopacket.getVariantsList(), sampleId);
+        injected.sort(Comparator.<VariantContext>comparingInt(vc -> pool.getContigIndex(vc.getContig()))
+                .thenComparingInt(VariantContext::getStart));
+
+        ByteBuffer records = pool.getRecords(template);
+        int recordCount = pool.getRecordCount(template);
+        int injectedIdx = 0;
+        StringBuilder line = new StringBuilder(256);
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(outPath))) {
+            os.write(PreRenderedVcfSimulator.renderHeader(header));
+            for (int record = 0; record < recordCount; record++) {
+                int contig = TemplatePool.getContigIndex(records, record);
+                int position = TemplatePool.getPosition(records, record);
+                // injected variant is placed after the template records with the same position
+                while (injectedIdx < injected.size() && isBefore(injected.get(injectedIdx), contig, position)) {
+                    writeLine(os, encoder.encode(injected.get(injectedIdx++)));
+                }
+                line.setLength(0);
+                pool.appendRecord(records, record, line);
+                writeLine(os, line.toString());
+            }
+            while (injectedIdx < injected.size()) {
+                writeLine(os, encoder.encode(injected.get(injectedIdx++)));
+            }
+        }
+        LOGGER.info("Created VCF containing {} variants", recordCount + injected.size());
+        scratchDirectory.written(outPath);
+        return outPath;
+    }
+
+    private boolean isBefore(VariantContext variant, int contig, int position) {
+        int variantContig = pool.getContigIndex(variant.getContig());
+        return variantContig < contig || variantContig == contig && variant.getStart() < position;
+    }
+
+    private static void writeLine(OutputStream os, String line) throws IOException {
+        os.write(line.getBytes(VCFEncoder.VCF_CHARSET));
+        os.write('\n');
+    }
+}
@@ -0,0 +1,309 @@
+package org.monarchinitiative.exomiser.simulations.cli.simulators;
+
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextComparator;
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFContigHeaderLine;
+import htsjdk.variant.vcf.VCFEncoder;
+import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeader;
+import org.monarchinitiative.exomiser.simulations.cli.Utils;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+/**
+ * Simulator that creates the simulated VCF by splicing lines of the injected variants into a pre-rendered body of the
+ * template VCF file.
+ * <p>
+ * The template records are decoded and encoded by htsjdk only once, when the simulator is created. For each case,
+ * only the header and the injected variants are encoded, the stretches of the pre-rendered body are copied into the
+ * output by {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}. The output is the same
+ * as the output of {@link SingleVcfSimulator}.
+ * </p>
+ */
+public class PreRenderedVcfSimulator implements VcfSimulator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PreRenderedVcfSimulator.class);
+
+    /**
+     * The sample name does not appear in the body of the VCF file, hence any name can be used for pre-rendering.
+     */
+    private static final String PLACEHOLDER_SAMPLE_ID = "SAMPLE";
+
+    private final VCFHeader templateHeader;
+
+    private final Map<String, Integer> contigIndices;
+
+    private final Path bodyPath;
+
+    private final ScratchDirectory scratchDirectory;
+
+    /**
+     * Contig indices and start positions of the pre-rendered records.
+     */
+    private final int[] recordContigs, recordStarts;
+
+    /**
+     * Offset of each pre-rendered record in the body file, the last element is the size of the body.
+     */
+    private final long[] recordOffsets;
+
+    private PreRenderedVcfSimulator(VCFHeader templateHeader, Path bodyPath, ScratchDirectory scratchDirectory,
+                                    int[] recordContigs, int[] recordStarts, long[] recordOffsets) {
+        this.templateHeader = templateHeader;
+        this.contigIndices = getContigIndices(templateHeader);
+        this.bodyPath = bodyPath;
+        this.scratchDirectory = scratchDirectory;
+        this.recordContigs = recordContigs;
+        this.recordStarts = recordStarts;
+        this.recordOffsets = recordOffsets;
+    }
+
+    private static Map<String, Integer> getContigIndices(VCFHeader header) {
+        Map<String, Integer> indices = new HashMap<>();
+        for (VCFContigHeaderLine line : header.getContigLines()) {
+            indices.put(line.getID(), line.getContigIndex());
+        }
+        return Collections.unmodifiableMap(indices);
+    }
+
+    /**
+     * Sort records of the template VCF file and render them into a temporary body file.
+     *
+     * @param templateVcfPath {@link Path} to possibly un-indexed VCF file
+     * @return simulator ready to be used
+     * @throws IOException if the body file cannot be written
+     */
+    public static PreRenderedVcfSimulator prerender(Path templateVcfPath) throws IOException {
+        return prerender(templateVcfPath, ScratchDirectory.getDefault());
+    }
+
+    /**
+     * Sort records of the template VCF file and render them into a body file in the scratch directory.
+     *
+     * @param templateVcfPath  {@link Path} to possibly un-indexed VCF file
+     * @param scratchDirectory directory where the body file and the simulated VCF files are created
+     * @return simulator ready to be used
+     * @throws IOException if the body file cannot be written
+     */
+    public static PreRenderedVcfSimulator prerender(Path templateVcfPath, ScratchDirectory scratchDirectory) throws IOException {
+        return prerender(templateVcfPath, scratchDirectory, SingleVcfSimulator.DEFAULT_MAX_RECORDS_IN_RAM);
+    }
+
+    /**
+     * Sort records of the template VCF file and render them into a body file in the scratch directory.
+     *
+     * @param templateVcfPath  {@link Path} to possibly un-indexed VCF file
+     * @param scratchDirectory directory where the body file and the simulated VCF files are created
+     * @param maxRecordsInRam  maximum number of records kept in memory while sorting an unsorted template, see
+     *                         {@link SingleVcfSimulator#sortExternally(Path, Path, int, Path)}
+     * @return simulator ready to be used
+     * @throws IOException if the body file cannot be written
+     */
+    public static PreRenderedVcfSimulator prerender(Path templateVcfPath, ScratchDirectory scratchDirectory,
+                                                    int maxRecordsInRam) throws IOException {
+        LOGGER.info("Pre-rendering template VCF file '{}'", templateVcfPath);
+        if (SingleVcfSimulator.isSorted(templateVcfPath)) {
+            return render(templateVcfPath, scratchDirectory);
+        }
+        Path sortedPath = scratchDirectory.createFile("sorted-template-", ".vcf");
+        try {
+            LOGGER.warn("Template VCF file is not sorted, sorting the records into '{}'", sortedPath);
+            int cnt = SingleVcfSimulator.sortExternally(templateVcfPath, sortedPath, maxRecordsInRam, scratchDirectory.getDirectory());
+            LOGGER.info("Sorted {} template variants", cnt);
+            scratchDirectory.written(sortedPath);
+            return render(sortedPath, scratchDirectory);
+        } finally {
+            // the sorted records are in the body file
+            scratchDirectory.release(sortedPath);
+        }
+    }
+
+    /**
+     * Render records of the sorted VCF file into a body file in the scratch directory.
+     */
+    private static PreRenderedVcfSimulator render(Path sortedVcfPath, ScratchDirectory scratchDirectory) throws IOException {
+        final File bodyFile = scratchDirectory.createFile("pre-rendered-vcf-body-", ".vcf").toFile();
+        try (VCFFileReader reader = new VCFFileReader(sortedVcfPath, false);
+             OutputStream os = new BufferedOutputStream(Files.newOutputStream(bodyFile.toPath()))) {
+            VCFHeader header = reader.getFileHeader();
+            Iterator<VariantContext> records = reader.iterator();
+
+            // encode the records the same way as VariantContextWriter does
+            VCFEncoder encoder = new VCFEncoder(SingleVcfSimulator.updateHeaderWithPhenopacketSample(header, PLACEHOLDER_SAMPLE_ID), true, false);
+            UnaryOperator<VariantContext> sampleRenamer = SingleVcfSimulator.sampleRenamer(header, PLACEHOLDER_SAMPLE_ID);
+            Map<String, Integer> contigIndices = getContigIndices(header);
+
+            IntArray contigs = new IntArray();
+            IntArray starts = new IntArray();
+            LongArray offsets = new LongArray();
+            long offset = 0;
+            while (records.hasNext()) {
+                VariantContext vc = records.next();
+                contigs.add(contigIndices.get(vc.getContig()));
+                starts.add(vc.getStart());
+                offsets.add(offset);
+
+                byte[] line = (encoder.encode(sampleRenamer.apply(vc)) + "\n").getBytes(VCFEncoder.VCF_CHARSET);
+                os.write(line);
+                offset += line.length;
+            }
+            offsets.add(offset);
+            LOGGER.info("Pre-rendered {} template variants into {} bytes", contigs.size(), offset);
+            os.flush();
+            scratchDirectory.written(bodyFile.toPath());
+
+            return new PreRenderedVcfSimulator(header, bodyFile.toPath(), scratchDirectory,
+                    contigs.toArray(), starts.toArray(), offsets.toArray());
+        }
+    }
+
+    /**
+     * Copy the <code>[from, to)</code> region of the <code>source</code> into the <code>target</code>.
+     */
+    static void transfer(FileChannel source, long from, long to, FileChannel target) throws IOException {
+        long position = from;
+        while (position < to) {
+            position += source.transferTo(position, to - position, target);
+        }
+    }
+
+    static void writeFully(FileChannel target, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    /**
+     * @return bytes of the VCF header as written by the {@link VariantContextWriter}
+     */
+    static byte[] renderHeader(VCFHeader header) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (VariantContextWriter writer = new VariantContextWriterBuilder()
+                .setOutputVCFStream(baos)
+                .setOption(Options.ALLOW_MISSING_FIELDS_IN_HEADER)
+                .unsetOption(Options.INDEX_ON_THE_FLY)
+                .build()) {
+            writer.writeHeader(header);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Find index of the first pre-rendered record that sorts after the <code>variant</code>.
+     */
+    private int insertionPoint(VariantContext variant) {
+        Integer contig = contigIndices.get(variant.getContig());
+        if (contig == null) {
+            throw new IllegalArgumentException("Contig '" + variant.getContig() + "' is not present in the template header");
+        }
+        int low = 0;
+        int high = recordStarts.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = recordContigs[mid] != contig
+                    ? Integer.compare(recordContigs[mid], contig)
+                    : Integer.compare(recordStarts[mid], variant.getStart());
+            if (cmp <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public Path simulateVcfWithPhenopacket(Phenopacket phenopacket) throws IOException {
+
+        final String sampleId = phenopacket.getSubject().getId().replaceAll("\\s+", "_");
+        // we create a temporary VCF file for Exomiser analysis
+        final File outPath = scratchDirectory.createFile("pre-rendered-vcf-simulators-" + sampleId + "-", ".vcf").toFile();
+
+        VCFHeader header = SingleVcfSimulator.updateHeaderWithPhenopacketSample(templateHeader, sampleId);
+        VCFEncoder encoder = new VCFEncoder(header, true, false);
+
+        List<VariantContext> injected = Utils.phenopacketToVariantContexts(phenopacket.getVariantsList(), sampleId);
+        injected.sort(new VariantContextComparator(templateHeader.getContigLines()));
+
+        try (FileChannel body = FileChannel.open(bodyPath, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(outPath.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(out, renderHeader(header));
+
+            long from = 0;
+            for (VariantContext vc : injected) {
+                long to = recordOffsets[insertionPoint(vc)];
+                transfer(body, from, to, out);
+                writeFully(out, (encoder.encode(vc) + "\n").getBytes(VCFEncoder.VCF_CHARSET));
+                from = to;
+            }
+            transfer(body, from, recordOffsets[recordOffsets.length - 1], out);
+        }
+        LOGGER.info("Created VCF containing {} variants", recordStarts.length + injected.size());
+        scratchDirectory.written(outPath.toPath());
+        return outPath.toPath();
+    }
+
+    /**
+     * Minimal growable array of primitive ints.
+     */
+    private static class IntArray {
+
+        private int[] data = new int[1024];
+
+        private int size;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+
+    /**
+     * Minimal growable array of primitive longs.
+     */
+    private static class LongArray {
+
+        private long[] data = new long[1024];
+
+        private int size;
+
+        void add(long value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
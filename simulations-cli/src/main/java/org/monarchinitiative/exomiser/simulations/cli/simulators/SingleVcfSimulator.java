@@ -1,5 +1,9 @@
 package org.monarchinitiative.exomiser.simulations.cli.simulators;
 
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.SortingCollection;
+import htsjdk.tribble.Tribble;
 import htsjdk.variant.variantcontext.GenotypeBuilder;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.VariantContextBuilder;
@@ -9,6 +13,7 @@ import htsjdk.variant.variantcontext.writer.VariantContextWriter;
 import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
 import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFRecordCodec;
 import org.monarchinitiative.exomiser.simulations.cli.Utils;
 import org.phenopackets.schema.v1.Phenopacket;
 import org.slf4j.Logger;
@@ -17,28 +22,87 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Objects;
+import java.util.function.Consumer;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * Simulator that injects variants defined from {@link Phenopacket} among variants present in single VCF file.
+ * <p>
+ * The injected variants are merged into the stream of template records, hence the simulation runs in constant memory
+ * and in time linear to the template size. Records of unsorted template are sorted only once, by an external merge
+ * sort which keeps at most {@link Builder#setMaxRecordsInRam(int)} records in memory and spills the sorted runs into
+ * the scratch directory. The sorted template is then used for all the simulations.
+ * </p>
+ * <p>
+ * The simulated VCF is written uncompressed by default. Block-compressed output indexed by tabix index can be
+ * requested by {@link Builder#setCompressOutput(boolean)}.
+ * </p>
+ * <p>
+ * The template records can be restricted to a {@link RegionSet}, e.g. to the regions of a gene panel, by
+ * {@link Builder#setRegions(RegionSet)}. Records of indexed template are then retrieved by querying the index region by
+ * region, so only the blocks overlapping the regions are read. The injected variants are always written.
+ * </p>
  */
 public class SingleVcfSimulator implements VcfSimulator {
 
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SingleVcfSimulator.class);
 
+    /**
+     * Number of records kept in memory while sorting the template, roughly a few hundred MB of heap.
+     */
+    public static final int DEFAULT_MAX_RECORDS_IN_RAM = 500_000;
+
     private final Path templateVcfPath;
 
+    /**
+     * Write block-compressed VCF with tabix index if <code>true</code>.
+     */
+    private final boolean compressOutput;
+
+    private final ScratchDirectory scratchDirectory;
+
+    private final int maxRecordsInRam;
+
+    /**
+     * Regions the template records are restricted to, <code>null</code> if all the records are used.
+     */
+    private final RegionSet regions;
+
+    /**
+     * Path to the template with sorted records, <code>null</code> until the template is checked for the first time.
+     */
+    private Path sortedTemplatePath;
+
+    /**
+     * <code>true</code> if the regions can be queried by the index of the sorted template.
+     */
+    private boolean queryByIndex;
+
     /**
      * @param templateVcfPath {@link Path} to possibly un-indexed VCF file
      */
     public SingleVcfSimulator(Path templateVcfPath) {
-        this.templateVcfPath = templateVcfPath;
+        this(builder().setTemplateVcfPath(templateVcfPath));
+    }
+
+    private SingleVcfSimulator(Builder builder) {
+        this.templateVcfPath = Objects.requireNonNull(builder.templateVcfPath, "Template VCF path must not be null");
+        this.compressOutput = builder.compressOutput;
+        this.scratchDirectory = builder.scratchDirectory == null ? ScratchDirectory.getDefault() : builder.scratchDirectory;
+        this.maxRecordsInRam = builder.maxRecordsInRam;
+        this.regions = builder.regions;
+    }
+
+    public static Builder builder() {
+        return new Builder();
     }
 
 
@@ -46,6 +110,82 @@ public class SingleVcfSimulator implements VcfSimulator {
         return new VCFHeader(original.getMetaDataInSortedOrder(), Collections.singleton(sampleId));
     }
 
+    /**
+     * Check that records of the VCF file are sorted by {@link VariantContextComparator}.
+     *
+     * @param vcfPath {@link Path} to possibly un-indexed VCF file
+     * @return <code>true</code> if the records are sorted
+     */
+    static boolean isSorted(Path vcfPath) {
+        try (VCFFileReader reader = new VCFFileReader(vcfPath, false)) {
+            VariantContextComparator comparator = new VariantContextComparator(reader.getFileHeader().getContigLines());
+            VariantContext previous = null;
+            for (VariantContext current : reader) {
+                if (previous != null && comparator.compare(previous, current) > 0) {
+                    return false;
+                }
+                previous = current;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param vcfPath {@link Path} to VCF file
+     * @return <code>true</code> if there is Tribble or tabix index next to the VCF file
+     */
+    static boolean isIndexed(Path vcfPath) {
+        return Tribble.indexFile(vcfPath.toFile()).isFile() || Tribble.tabixIndexFile(vcfPath.toFile()).isFile();
+    }
+
+    /**
+     * Merge sorted <code>injected</code> variants into sorted stream of <code>template</code> variants. Injected
+     * variant is placed after the template variants with the same position.
+     *
+     * @param template   iterator over sorted template variants
+     * @param injected   sorted list of variants to inject
+     * @param comparator comparator the variants are sorted by
+     * @param consumer   consumer of the merged variants
+     * @return number of variants passed to the <code>consumer</code>
+     */
+    static int mergeSorted(Iterator<VariantContext> template, List<VariantContext> injected,
+                           Comparator<VariantContext> comparator, Consumer<VariantContext> consumer) {
+        int cnt = 0;
+        int injectedIdx = 0;
+        while (template.hasNext()) {
+            VariantContext current = template.next();
+            while (injectedIdx < injected.size() && comparator.compare(injected.get(injectedIdx), current) < 0) {
+                consumer.accept(injected.get(injectedIdx++));
+                cnt++;
+            }
+            consumer.accept(current);
+            cnt++;
+        }
+        while (injectedIdx < injected.size()) {
+            consumer.accept(injected.get(injectedIdx++));
+            cnt++;
+        }
+        return cnt;
+    }
+
+    /**
+     * Get function that makes template records carry the genotype of the <code>sampleId</code>.
+     * <p>
+     * The genotype fields of a template with at most one sample are passed through as they are. htsjdk keeps them
+     * un-parsed and the writer outputs them verbatim under the sample column of the updated header, hence the sample
+     * only needs to be renamed in the header. Genotypes of a multi-sample template are decoded and renamed.
+     * </p>
+     *
+     * @param templateHeader header of the template VCF file
+     * @param sampleId       ID of the simulated sample
+     * @return function to be applied to each template record
+     */
+    static UnaryOperator<VariantContext> sampleRenamer(VCFHeader templateHeader, String sampleId) {
+        return templateHeader.getNGenotypeSamples() <= 1
+                ? UnaryOperator.identity()
+                : changeSampleNameInGenotypes(sampleId);
+    }
+
     static UnaryOperator<VariantContext> changeSampleNameInGenotypes(final String sampleId) {
         return vc -> {
             final VariantContextBuilder vcb = new VariantContextBuilder(vc)
@@ -58,36 +198,295 @@ public class SingleVcfSimulator implements VcfSimulator {
         };
     }
 
-    @Override
-    public Path simulateVcfWithPhenopacket(Phenopacket phenopacket) throws IOException {
-
-        final String sampleId = phenopacket.getSubject().getId().replaceAll("\\s+", "_");
-        // we create a temporary VCF file for Exomiser analysis
-        final File outPath = File.createTempFile("single-vcf-simulators-" + sampleId + "-", ".vcf");
-        outPath.deleteOnExit();
-
-        try (VCFFileReader reader = new VCFFileReader(templateVcfPath, false);
+    /**
+     * Sort records of the VCF file by an external merge sort.
+     *
+     * @param vcfPath          {@link Path} to possibly un-indexed VCF file
+     * @param sortedPath       {@link Path} where the sorted VCF file is written
+     * @param maxRecordsInRam  maximum number of records kept in memory, the rest is spilled into the
+     *                         <code>spillDirectory</code>
+     * @param spillDirectory   directory for the sorted runs
+     * @return number of sorted records
+     */
+    static int sortExternally(Path vcfPath, Path sortedPath, int maxRecordsInRam, Path spillDirectory) {
+        try (VCFFileReader reader = new VCFFileReader(vcfPath, false);
              VariantContextWriter writer = new VariantContextWriterBuilder()
-                     .setOutputFile(outPath)
+                     .setOutputPath(sortedPath)
                      .setOutputFileType(VariantContextWriterBuilder.OutputType.VCF)
                      .setOption(Options.ALLOW_MISSING_FIELDS_IN_HEADER)
                      .unsetOption(Options.INDEX_ON_THE_FLY)
                      .build()) {
-            LOGGER.info("Reading file '{}'", templateVcfPath);
-            VCFHeader fileHeader = reader.getFileHeader();
-            fileHeader = updateHeaderWithPhenopacketSample(fileHeader, sampleId);
+            VCFHeader header = reader.getFileHeader();
+            SortingCollection<VariantContext> sorter = SortingCollection.newInstance(VariantContext.class,
+                    new VCFRecordCodec(header, true), new VariantContextComparator(header.getContigLines()),
+                    maxRecordsInRam, spillDirectory);
+            try {
+                for (VariantContext vc : reader) {
+                    sorter.add(vc);
+                }
+                sorter.doneAdding();
+
+                writer.writeHeader(header);
+                int cnt = 0;
+                try (CloseableIterator<VariantContext> sorted = sorter.iterator()) {
+                    while (sorted.hasNext()) {
+                        writer.add(sorted.next());
+                        cnt++;
+                    }
+                }
+                return cnt;
+            } finally {
+                sorter.cleanup();
+            }
+        }
+    }
+
+    /**
+     * @return path to the template VCF file if it is sorted or path to sorted copy of the template
+     */
+    private synchronized Path getSortedTemplatePath() throws IOException {
+        if (sortedTemplatePath == null) {
+            LOGGER.info("Checking that template VCF file '{}' is sorted", templateVcfPath);
+            if (isSorted(templateVcfPath)) {
+                sortedTemplatePath = templateVcfPath;
+            } else {
+                Path sortedPath = scratchDirectory.createFile("sorted-template-", ".vcf");
+                LOGGER.warn("Template VCF file is not sorted, sorting the records into '{}'", sortedPath);
+                int cnt = sortExternally(templateVcfPath, sortedPath, maxRecordsInRam, scratchDirectory.getDirectory());
+                LOGGER.info("Sorted {} template variants", cnt);
+                scratchDirectory.written(sortedPath);
+                sortedTemplatePath = sortedPath;
+            }
+            if (regions != null) {
+                queryByIndex = isIndexed(sortedTemplatePath);
+                if (queryByIndex) {
+                    LOGGER.info("Restricting template records to {} regions using the index", regions.size());
+                } else {
+                    LOGGER.warn("Template VCF file '{}' is not indexed, scanning all the records to restrict them to {} regions",
+                            sortedTemplatePath, regions.size());
+                }
+            }
+        }
+        return sortedTemplatePath;
+    }
+
+    private VCFFileReader openTemplateReader(Path sortedTemplatePath) {
+        return new VCFFileReader(sortedTemplatePath, queryByIndex);
+    }
+
+    /**
+     * @return iterator over the sorted template records, restricted to the regions if set
+     */
+    private Iterator<VariantContext> templateRecords(VCFFileReader reader) {
+        if (regions == null) {
+            return reader.iterator();
+        }
+        return queryByIndex ? regions.query(reader) : regions.filter(reader.iterator());
+    }
+
+    private File createOutputFile(String sampleId) throws IOException {
+        // we create a temporary VCF file for Exomiser analysis
+        return scratchDirectory.createFile("single-vcf-simulators-" + sampleId + "-", compressOutput ? ".vcf.gz" : ".vcf").toFile();
+    }
+
+    /**
+     * @param outPath    path to the VCF file to be written
+     * @param dictionary sequence dictionary of the template, used by tabix index if present
+     */
+    private VariantContextWriter openWriter(File outPath, SAMSequenceDictionary dictionary) {
+        VariantContextWriterBuilder builder = new VariantContextWriterBuilder()
+                .setOutputFile(outPath)
+                .setOption(Options.ALLOW_MISSING_FIELDS_IN_HEADER);
+        if (compressOutput) {
+            // the records are written sorted, hence the tabix index can be created on the fly
+            return builder.setOutputFileType(VariantContextWriterBuilder.OutputType.BLOCK_COMPRESSED_VCF)
+                    .setReferenceDictionary(dictionary)
+                    .setOption(Options.INDEX_ON_THE_FLY)
+                    .build();
+        }
+        return builder.setOutputFileType(VariantContextWriterBuilder.OutputType.VCF)
+                .unsetOption(Options.INDEX_ON_THE_FLY)
+                .build();
+    }
+
+    private static String getSampleId(Phenopacket phenopacket) {
+        return phenopacket.getSubject().getId().replaceAll("\\s+", "_");
+    }
+
+    @Override
+    public Path simulateVcfWithPhenopacket(Phenopacket phenopacket) throws IOException {
+        final Path sortedTemplatePath = getSortedTemplatePath();
+
+        final String sampleId = getSampleId(phenopacket);
+        final File outPath = createOutputFile(sampleId);
+
+        try (VCFFileReader reader = openTemplateReader(sortedTemplatePath);
+             VariantContextWriter writer = openWriter(outPath, reader.getFileHeader().getSequenceDictionary())) {
+            LOGGER.info("Reading file '{}'", sortedTemplatePath);
+            VCFHeader templateHeader = reader.getFileHeader();
+            VCFHeader fileHeader = updateHeaderWithPhenopacketSample(templateHeader, sampleId);
             writer.writeHeader(fileHeader);
 
             List<VariantContext> injected = Utils.phenopacketToVariantContexts(phenopacket.getVariantsList(), sampleId);
+            VariantContextComparator comparator = new VariantContextComparator(fileHeader.getContigLines());
+            UnaryOperator<VariantContext> sampleRenamer = sampleRenamer(templateHeader, sampleId);
 
-            AtomicInteger cnt = new AtomicInteger();
-            Stream.concat(reader.iterator().stream(), injected.stream())
-                    .map(changeSampleNameInGenotypes(sampleId))
-                    .sorted(new VariantContextComparator(fileHeader.getContigLines()))
-                    .peek(vc -> cnt.incrementAndGet())
-                    .forEach(writer::add);
-            LOGGER.info("Created VCF containing {} variants", cnt.get());
+            injected.sort(comparator);
+            int cnt = mergeSorted(templateRecords(reader), injected, comparator, vc -> writer.add(sampleRenamer.apply(vc)));
+            LOGGER.info("Created VCF containing {} variants", cnt);
         }
+        scratchDirectory.written(outPath.toPath());
         return outPath.toPath();
     }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The sorted template is read only once and each template record is written into all the VCF files of the batch.
+     * One file handle is open for each phenopacket of the batch at the same time.
+     * </p>
+     */
+    @Override
+    public List<Path> simulateVcfsWithPhenopackets(List<Phenopacket> phenopackets) throws IOException {
+        if (phenopackets.size() < 2) {
+            return VcfSimulator.super.simulateVcfsWithPhenopackets(phenopackets);
+        }
+        final Path sortedTemplatePath = getSortedTemplatePath();
+
+        List<Path> paths = new ArrayList<>(phenopackets.size());
+        List<CaseWriter> caseWriters = new ArrayList<>(phenopackets.size());
+        try (VCFFileReader reader = openTemplateReader(sortedTemplatePath)) {
+            LOGGER.info("Reading file '{}' for a batch of {} phenopackets", sortedTemplatePath, phenopackets.size());
+            VCFHeader templateHeader = reader.getFileHeader();
+            VariantContextComparator comparator = new VariantContextComparator(templateHeader.getContigLines());
+            for (Phenopacket phenopacket : phenopackets) {
+                String sampleId = getSampleId(phenopacket);
+                File outPath = createOutputFile(sampleId);
+                paths.add(outPath.toPath());
+
+                List<VariantContext> injected = Utils.phenopacketToVariantContexts(phenopacket.getVariantsList(), sampleId);
+                injected.sort(comparator);
+                CaseWriter caseWriter = new CaseWriter(openWriter(outPath, templateHeader.getSequenceDictionary()), injected, sampleRenamer(templateHeader, sampleId));
+                caseWriters.add(caseWriter);
+                caseWriter.writer.writeHeader(updateHeaderWithPhenopacketSample(templateHeader, sampleId));
+            }
+
+            Iterator<VariantContext> records = templateRecords(reader);
+            while (records.hasNext()) {
+                VariantContext current = records.next();
+                for (CaseWriter caseWriter : caseWriters) {
+                    caseWriter.addTemplateVariant(current, comparator);
+                }
+            }
+        } finally {
+            for (CaseWriter caseWriter : caseWriters) {
+                caseWriter.close();
+            }
+        }
+        paths.forEach(scratchDirectory::written);
+        return paths;
+    }
+
+    /**
+     * Writer of a single VCF file of a batch that keeps track of variants to be injected.
+     */
+    private static class CaseWriter implements AutoCloseable {
+
+        private final VariantContextWriter writer;
+
+        private final List<VariantContext> injected;
+
+        private final UnaryOperator<VariantContext> sampleRenamer;
+
+        private int injectedIdx = 0;
+
+        private int cnt = 0;
+
+        private CaseWriter(VariantContextWriter writer, List<VariantContext> injected, UnaryOperator<VariantContext> sampleRenamer) {
+            this.writer = writer;
+            this.injected = injected;
+            this.sampleRenamer = sampleRenamer;
+        }
+
+        private void addTemplateVariant(VariantContext current, Comparator<VariantContext> comparator) {
+            while (injectedIdx < injected.size() && comparator.compare(injected.get(injectedIdx), current) < 0) {
+                writer.add(injected.get(injectedIdx++));
+                cnt++;
+            }
+            writer.add(sampleRenamer.apply(current));
+            cnt++;
+        }
+
+        @Override
+        public void close() {
+            while (injectedIdx < injected.size()) {
+                writer.add(injected.get(injectedIdx++));
+                cnt++;
+            }
+            writer.close();
+            LOGGER.info("Created VCF containing {} variants", cnt);
+        }
+    }
+
+    public static final class Builder {
+
+        private Path templateVcfPath;
+
+        private boolean compressOutput = false;
+
+        private ScratchDirectory scratchDirectory;
+
+        private int maxRecordsInRam = DEFAULT_MAX_RECORDS_IN_RAM;
+
+        private RegionSet regions;
+
+        private Builder() {
+        }
+
+        /**
+         * @param templateVcfPath {@link Path} to possibly un-indexed VCF file
+         */
+        public Builder setTemplateVcfPath(Path templateVcfPath) {
+            this.templateVcfPath = templateVcfPath;
+            return this;
+        }
+
+        /**
+         * @param compressOutput write block-compressed VCF files with tabix index if <code>true</code>
+         */
+        public Builder setCompressOutput(boolean compressOutput) {
+            this.compressOutput = compressOutput;
+            return this;
+        }
+
+        /**
+         * @param scratchDirectory directory where the simulated VCF files are created. A directory in
+         *                         <code>java.io.tmpdir</code> is used if not set
+         */
+        public Builder setScratchDirectory(ScratchDirectory scratchDirectory) {
+            this.scratchDirectory = scratchDirectory;
+            return this;
+        }
+
+        /**
+         * @param maxRecordsInRam maximum number of records kept in memory while sorting unsorted template
+         */
+        public Builder setMaxRecordsInRam(int maxRecordsInRam) {
+            this.maxRecordsInRam = maxRecordsInRam;
+            return this;
+        }
+
+        /**
+         * @param regions regions the template records are restricted to, all the records are used if
+         *                <code>null</code>
+         */
+        public Builder setRegions(RegionSet regions) {
+            this.regions = regions;
+            return this;
+        }
+
+        public SingleVcfSimulator build() {
+            return new SingleVcfSimulator(this);
+        }
+    }
 }
@@ -8,10 +8,13 @@ import org.phenopackets.schema.v1.core.Variant;
 import org.phenopackets.schema.v1.core.VcfAllele;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class UtilsTest {
@@ -120,4 +123,71 @@ class UtilsTest {
         String pathomechanism = Utils.getSplicingPathomechanism(variants);
         assertThat(pathomechanism, is("splicing|3ss|disrupted;splicing|5css|activated"));
     }
-}
\ No newline at end of file
+
+    @Test
+    void eachCaseIsInExactlyOneShard() {
+        int shardCount = 3;
+        int[] shardSizes = new int[shardCount];
+        for (int i = 0; i < 300; i++) {
+            String caseName = "PMID_" + i + ".json";
+            int shards = 0;
+            for (int shard = 0; shard < shardCount; shard++) {
+                if (Utils.isInShard(caseName, shard, shardCount)) {
+                    shards++;
+                    shardSizes[shard]++;
+                }
+            }
+            assertThat(shards, is(1));
+        }
+        for (int size : shardSizes) {
+            assertTrue(size > 50, "shards should be balanced, got " + size);
+        }
+        // the assignment must not change between runs and machines, CRC32 of the name is 0x42ce6c5c
+        assertTrue(Utils.isInShard("PMID_0.json", 1, shardCount));
+    }
+
+    @Test
+    void casesOfOtherShardsAreRemoved() {
+        List<String> cases = new ArrayList<>(Arrays.asList("PMID_0.json", "PMID_1.json", "PMID_2.json", "PMID_3.json"));
+        List<String> all = new ArrayList<>(cases);
+
+        Utils.retainShard(cases, name -> name, 1, 3);
+
+        List<String> expected = new ArrayList<>();
+        for (String name : all) {
+            if (Utils.isInShard(name, 1, 3)) {
+                expected.add(name);
+            }
+        }
+        assertThat(cases, is(expected));
+        assertThat(cases.contains("PMID_0.json"), is(true));
+
+        Utils.retainShard(all, name -> name, 0, 1);
+        assertThat(all.size(), is(4));
+    }
+
+    @Test
+    void shardOptionsAreParsed() {
+        assertThat(Arrays.equals(Utils.parseShardOptions(null, null), new int[]{0, 1}), is(true));
+        assertThat(Arrays.equals(Utils.parseShardOptions(Collections.singletonList("2"), Collections.singletonList("3")),
+                new int[]{2, 3}), is(true));
+    }
+
+    @Test
+    void invalidShardOptionsAreRejected() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> Utils.parseShardOptions(Collections.singletonList("0"), null));
+        assertThat(e.getMessage(), is("'--shard-index' and '--shard-count' must be used together"));
+
+        e = assertThrows(IllegalArgumentException.class,
+                () -> Utils.parseShardOptions(Collections.singletonList("first"), Collections.singletonList("3")));
+        assertThat(e.getMessage(), is("Invalid '--shard-index' or '--shard-count' argument: For input string: \"first\""));
+
+        e = assertThrows(IllegalArgumentException.class,
+                () -> Utils.parseShardOptions(Collections.singletonList("3"), Collections.singletonList("3")));
+        assertThat(e.getMessage(), is("'--shard-index' must be between 0 and '--shard-count' - 1"));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> Utils.parseShardOptions(Collections.singletonList("-1"), Collections.singletonList("3")));
+    }
+}
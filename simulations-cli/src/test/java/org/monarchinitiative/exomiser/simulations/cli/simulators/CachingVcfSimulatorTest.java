@@ -0,0 +1,155 @@
+package org.monarchinitiative.exomiser.simulations.cli.simulators;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.monarchinitiative.exomiser.simulations.cli.TestExamples;
+import org.phenopackets.schema.v1.Phenopacket;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.monarchinitiative.exomiser.simulations.cli.TestExamples.hetVariant;
+import static org.monarchinitiative.exomiser.simulations.cli.TestExamples.individual;
+
+class CachingVcfSimulatorTest {
+
+    private static final Path TEST_VCF_PATH = Paths.get(CachingVcfSimulatorTest.class.getResource("GIAB_NIST7035_3vars.vcf").getFile());
+
+    private final AtomicInteger simulations = new AtomicInteger();
+
+    private VcfSimulator delegate;
+
+    private Path cacheDirectory;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        SingleVcfSimulator simulator = new SingleVcfSimulator(TEST_VCF_PATH);
+        delegate = phenopacket -> {
+            simulations.incrementAndGet();
+            return simulator.simulateVcfWithPhenopacket(phenopacket);
+        };
+        cacheDirectory = Files.createTempDirectory("caching-vcf-simulator-test");
+    }
+
+    private CachingVcfSimulator makeInstance(long maxCacheSize) {
+        return CachingVcfSimulator.builder()
+                .setDelegate(delegate)
+                .setTemplateVcfPath(TEST_VCF_PATH)
+                .setCacheDirectory(cacheDirectory)
+                .setMaxCacheSize(maxCacheSize)
+                .build();
+    }
+
+    @Test
+    void cachedVcfIsReturnedWithoutSimulation() throws IOException {
+        Phenopacket packet = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny"));
+        Path expected = new SingleVcfSimulator(TEST_VCF_PATH).simulateVcfWithPhenopacket(packet);
+
+        Path first = makeInstance(Long.MAX_VALUE).simulateVcfWithPhenopacket(packet);
+        // another run uses the same cache directory
+        Path second = makeInstance(Long.MAX_VALUE).simulateVcfWithPhenopacket(packet);
+
+        assertThat(simulations.get(), is(1));
+        assertThat(second, is(first));
+        assertThat(first.getParent(), is(cacheDirectory));
+        assertThat(Files.readAllLines(second), is(Files.readAllLines(expected)));
+    }
+
+    @Test
+    void differentSampleIdIsSimulatedAgain() throws IOException {
+        CachingVcfSimulator instance = makeInstance(Long.MAX_VALUE);
+
+        Path johnny = instance.simulateVcfWithPhenopacket(TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny")));
+        Path donna = instance.simulateVcfWithPhenopacket(TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Donna")));
+
+        assertThat(simulations.get(), is(2));
+        assertThat(donna, is(not(johnny)));
+        assertThat(instance.getStatistics(), is("VCF cache hits: 0, misses: 2, evictions: 0"));
+    }
+
+    @Test
+    void leastRecentlyUsedVcfIsEvicted() throws IOException {
+        Phenopacket johnnyPacket = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny"));
+        Phenopacket donnaPacket = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Donna"));
+        Path johnny = makeInstance(Long.MAX_VALUE).simulateVcfWithPhenopacket(johnnyPacket);
+        Path donna = makeInstance(Long.MAX_VALUE).simulateVcfWithPhenopacket(donnaPacket);
+        Files.setLastModifiedTime(johnny, FileTime.fromMillis(1000));
+        Files.setLastModifiedTime(donna, FileTime.fromMillis(2000));
+
+        // budget fits two files only
+        CachingVcfSimulator instance = makeInstance(Files.size(johnny) + Files.size(donna) + 10);
+        instance.simulateVcfWithPhenopacket(donnaPacket);
+        Path bravo = instance.simulateVcfWithPhenopacket(TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Bravo")));
+
+        assertThat(Files.exists(johnny), is(false));
+        assertThat(Files.exists(donna), is(true));
+        assertThat(Files.exists(bravo), is(true));
+        assertThat(instance.getStatistics(), is("VCF cache hits: 1, misses: 1, evictions: 1"));
+    }
+
+    @Test
+    void vcfInUseIsNotEvicted() throws IOException {
+        Phenopacket johnnyPacket = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny"));
+        Phenopacket donnaPacket = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Donna"));
+        Path johnny = makeInstance(Long.MAX_VALUE).simulateVcfWithPhenopacket(johnnyPacket);
+
+        // budget fits a single file only
+        CachingVcfSimulator instance = makeInstance(Files.size(johnny) + 10);
+        instance.simulateVcfWithPhenopacket(johnnyPacket);
+        Files.setLastModifiedTime(johnny, FileTime.fromMillis(1000));
+        Path donna = instance.simulateVcfWithPhenopacket(donnaPacket);
+
+        assertThat(Files.exists(johnny), is(true));
+        assertThat(Files.exists(donna), is(true));
+
+        instance.release(johnny);
+        instance.release(donna);
+        instance.simulateVcfWithPhenopacket(TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Bravo")));
+
+        assertThat(Files.exists(johnny), is(false));
+        assertThat(Files.exists(donna), is(false));
+    }
+
+    @Test
+    void onlyMissingVcfsOfBatchAreSimulated() throws IOException {
+        Phenopacket johnny = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny"));
+        Phenopacket donna = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Donna"));
+        CachingVcfSimulator instance = makeInstance(Long.MAX_VALUE);
+        Path cachedJohnny = instance.simulateVcfWithPhenopacket(johnny);
+
+        List<Path> paths = instance.simulateVcfsWithPhenopackets(Arrays.asList(johnny, donna));
+
+        assertThat(simulations.get(), is(2));
+        assertThat(paths.get(0), is(cachedJohnny));
+        assertThat(paths.get(1).getParent(), is(cacheDirectory));
+        assertThat(instance.getStatistics(), is("VCF cache hits: 1, misses: 2, evictions: 0"));
+    }
+
+    @Test
+    void parseSize() {
+        assertThat(CachingVcfSimulator.parseSize("1024"), is(1024L));
+        assertThat(CachingVcfSimulator.parseSize("2k"), is(2048L));
+        assertThat(CachingVcfSimulator.parseSize("500M"), is(500L << 20));
+        assertThat(CachingVcfSimulator.parseSize("3G"), is(3L << 30));
+    }
+
+    @Test
+    void parseInvalidSize() {
+        assertThrows(NumberFormatException.class, () -> CachingVcfSimulator.parseSize(""));
+        assertThrows(NumberFormatException.class, () -> CachingVcfSimulator.parseSize("  "));
+        assertThrows(NumberFormatException.class, () -> CachingVcfSimulator.parseSize("G"));
+        assertThrows(NumberFormatException.class, () -> CachingVcfSimulator.parseSize("100000000T"));
+        assertThrows(NumberFormatException.class, () -> CachingVcfSimulator.parseSize("-1"));
+        assertThrows(NumberFormatException.class, () -> CachingVcfSimulator.parseSize("-5G"));
+    }
+}
@@ -0,0 +1,85 @@
+package org.monarchinitiative.exomiser.simulations.cli.simulators;
+
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.variant.vcf.VCFCodec;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.monarchinitiative.exomiser.simulations.cli.TestExamples;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.core.VcfAllele;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.monarchinitiative.exomiser.simulations.cli.TestExamples.hetVariant;
+import static org.monarchinitiative.exomiser.simulations.cli.TestExamples.individual;
+
+class ContigParallelVcfSimulatorTest {
+
+    /**
+     * Sort the template into a temporary directory and index it.
+     */
+    private static Path makeIndexedTemplate(String templateName) throws IOException {
+        Path template = Paths.get(ContigParallelVcfSimulatorTest.class.getResource(templateName).getFile());
+        Path directory = Files.createTempDirectory("contig-parallel-vcf-simulator-test");
+        Path sorted = directory.resolve(templateName);
+        SingleVcfSimulator.sortExternally(template, sorted, 1000, directory);
+        IndexFactory.createDynamicIndex(sorted.toFile(), new VCFCodec()).writeBasedOnFeatureFile(sorted.toFile());
+        return sorted;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"GIAB_NIST7035_3vars.vcf", "GIAB_NIST7035.vcf"})
+    void outputIsTheSameAsOutputOfSingleVcfSimulator(String templateName) throws Exception {
+        Path template = makeIndexedTemplate(templateName);
+        Phenopacket packet = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny")).toBuilder()
+                .addVariants(hetVariant().toBuilder().setVcfAllele(VcfAllele.newBuilder().setChr("chr1").setPos(1).setRef("A").setAlt("G")))
+                .addVariants(hetVariant().toBuilder().setVcfAllele(VcfAllele.newBuilder().setChr("chr22").setPos(100).setRef("A").setAlt("G")))
+                .build();
+
+        Path expected = new SingleVcfSimulator(template).simulateVcfWithPhenopacket(packet);
+        try (ContigParallelVcfSimulator instance = new ContigParallelVcfSimulator(template, ScratchDirectory.getDefault(), 4)) {
+            Path actual = instance.simulateVcfWithPhenopacket(packet);
+
+            assertThat(Files.readAllLines(actual), is(Files.readAllLines(expected)));
+        }
+    }
+
+    @Test
+    void chunksAreReleasedWhenContigFails() throws Exception {
+        Path template = Files.createTempDirectory("contig-parallel-vcf-simulator-test").resolve("invalid.vcf");
+        Files.copy(Paths.get(getClass().getResource("GIAB_NIST7035_3vars.vcf").getFile()), template);
+        Files.write(template, "chr2\t100\t.\tA\tG\t100.000\t.\t.\tGT\t0/1\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        IndexFactory.createDynamicIndex(template.toFile(), new VCFCodec()).writeBasedOnFeatureFile(template.toFile());
+        // the indexed record of chr2 gets invalid quality of the same length, while the chunk of chr1 is written successfully
+        String content = new String(Files.readAllBytes(template), StandardCharsets.UTF_8);
+        Files.write(template, content.replace("\t100.000\t", "\tinvalid\t").getBytes(StandardCharsets.UTF_8));
+
+        try (ScratchDirectory scratchDirectory = ScratchDirectory.create(template.getParent());
+             ContigParallelVcfSimulator instance = new ContigParallelVcfSimulator(template, scratchDirectory, 4)) {
+            IOException e = assertThrows(IOException.class,
+                    () -> instance.simulateVcfWithPhenopacket(TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny"))));
+            assertThat(e.getCause(), instanceOf(RuntimeException.class));
+
+            try (Stream<Path> files = Files.list(scratchDirectory.getDirectory())) {
+                assertThat(files.count(), is(0L));
+            }
+        }
+    }
+
+    @Test
+    void unindexedTemplateIsRejected() {
+        Path template = Paths.get(getClass().getResource("GIAB_NIST7035_3vars.vcf").getFile());
+        assertThrows(IllegalArgumentException.class, () -> new ContigParallelVcfSimulator(template, ScratchDirectory.getDefault(), 2));
+    }
+}
@@ -0,0 +1,144 @@
+package org.monarchinitiative.exomiser.simulations.cli.simulators;
+
+import htsjdk.variant.variantcontext.LazyGenotypesContext;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFFileReader;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.monarchinitiative.exomiser.simulations.cli.TestExamples;
+import org.phenopackets.schema.v1.Phenopacket;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.monarchinitiative.exomiser.simulations.cli.TestExamples.hetVariant;
+import static org.monarchinitiative.exomiser.simulations.cli.TestExamples.individual;
+
+class InMemoryVcfSimulatorTest {
+
+    private static final Path TEST_VCF_PATH = Paths.get(InMemoryVcfSimulatorTest.class.getResource("GIAB_NIST7035.vcf").getFile());
+
+    private static VcfTemplate template;
+
+    @BeforeAll
+    static void setUpBeforeAll() {
+        template = VcfTemplate.load(TEST_VCF_PATH);
+    }
+
+    private static List<String> readVariants(Path path, String sampleId) {
+        try (VCFFileReader reader = new VCFFileReader(path.toFile(), false)) {
+            return reader.iterator().stream()
+                    .map(vc -> String.format("%s:%d%s>%s %s", vc.getContig(), vc.getStart(),
+                            vc.getReference().getBaseString(), vc.getAlternateAlleles(),
+                            vc.getGenotype(sampleId).getGenotypeString()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void templateIsSorted() {
+        List<VariantContext> variants = template.getVariants();
+
+        assertThat(variants.size(), is(128));
+        for (int i = 1; i < variants.size(); i++) {
+            assertThat(template.getComparator().compare(variants.get(i - 1), variants.get(i)) <= 0, is(true));
+        }
+    }
+
+    @Test
+    void simulatedVcfIsTheSameAsVcfFromSingleVcfSimulator() throws IOException {
+        Phenopacket packet = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny"));
+
+        Path expected = new SingleVcfSimulator(TEST_VCF_PATH).simulateVcfWithPhenopacket(packet);
+        Path actual = new InMemoryVcfSimulator(template).simulateVcfWithPhenopacket(packet);
+
+        List<String> actualVariants = readVariants(actual, "Johnny");
+        assertThat(actualVariants.size(), is(129));
+        assertThat(actualVariants, hasItem("chr1:787400C>[T] C/T"));
+        assertThat(actualVariants, is(readVariants(expected, "Johnny")));
+    }
+
+    @Test
+    void templateIsSharedBetweenSimulations() throws IOException {
+        InMemoryVcfSimulator simulator = new InMemoryVcfSimulator(template);
+
+        Path first = simulator.simulateVcfWithPhenopacket(TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny")));
+        Path second = simulator.simulateVcfWithPhenopacket(TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Donna")));
+
+        try (VCFFileReader reader = new VCFFileReader(second.toFile(), false)) {
+            assertThat(reader.getFileHeader().getGenotypeSamples(), hasItem("Donna"));
+        }
+        assertThat(readVariants(first, "Johnny"), is(readVariants(second, "Donna")));
+        assertThat(template.getVariants().size(), is(128));
+    }
+
+    /**
+     * Write a copy of the test template with the genotypes of the sample duplicated into a second sample.
+     */
+    private static Path writeTwoSampleTemplate() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(TEST_VCF_PATH)) {
+            if (line.startsWith("##")) {
+                lines.add(line);
+            } else if (line.startsWith("#")) {
+                lines.add(line + "\tNIST7086");
+            } else {
+                lines.add(line + line.substring(line.lastIndexOf('\t')));
+            }
+        }
+        Path path = Files.createTempDirectory("in-memory-vcf-simulator-test").resolve("two-samples.vcf");
+        Files.write(path, lines);
+        return path;
+    }
+
+    @Test
+    void multiSampleTemplateIsSharedByConcurrentSimulations() throws Exception {
+        Path templatePath = writeTwoSampleTemplate();
+        VcfTemplate twoSamples = VcfTemplate.load(templatePath);
+        for (VariantContext vc : twoSamples.getVariants()) {
+            // decoded while loading, the simulations do not decode the shared records
+            assertThat(vc.getGenotypes() instanceof LazyGenotypesContext, is(false));
+            assertThat(vc.getNSamples(), is(2));
+        }
+
+        List<String> samples = new ArrayList<>();
+        List<List<String>> expected = new ArrayList<>();
+        SingleVcfSimulator singleVcfSimulator = new SingleVcfSimulator(templatePath);
+        for (int i = 0; i < 16; i++) {
+            String sample = "Sample" + i;
+            samples.add(sample);
+            expected.add(readVariants(singleVcfSimulator.simulateVcfWithPhenopacket(
+                    TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual(sample))), sample));
+        }
+
+        InMemoryVcfSimulator simulator = new InMemoryVcfSimulator(twoSamples);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Path>> futures = new ArrayList<>();
+            for (String sample : samples) {
+                futures.add(executor.submit(() -> simulator.simulateVcfWithPhenopacket(
+                        TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual(sample)))));
+            }
+            assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+                for (int i = 0; i < samples.size(); i++) {
+                    assertThat(readVariants(futures.get(i).get(), samples.get(i)), is(expected.get(i)));
+                }
+            });
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.monarchinitiative.exomiser.simulations.cli.simulators;
+
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextComparator;
+import htsjdk.variant.vcf.VCFFileReader;
+import org.junit.jupiter.api.Test;
+import org.monarchinitiative.exomiser.simulations.cli.TestExamples;
+import org.phenopackets.schema.v1.Phenopacket;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.monarchinitiative.exomiser.simulations.cli.TestExamples.hetVariant;
+import static org.monarchinitiative.exomiser.simulations.cli.TestExamples.individual;
+
+class PooledVcfSimulatorTest {
+
+    @Test
+    void templateChoiceIsDeterministic() throws IOException {
+        TemplatePool pool = TemplatePoolTest.buildPool();
+        PooledVcfSimulator first = new PooledVcfSimulator(pool, 42, ScratchDirectory.getDefault());
+        PooledVcfSimulator second = new PooledVcfSimulator(pool, 42, ScratchDirectory.getDefault());
+
+        Set<Integer> chosen = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            String sampleId = "sample-" + i;
+            assertThat(first.chooseTemplate(sampleId), is(second.chooseTemplate(sampleId)));
+            chosen.add(first.chooseTemplate(sampleId));
+        }
+        // both templates are used
+        assertThat(chosen.size(), is(2));
+    }
+
+    @Test
+    void simulatedVcfIsSortedAndContainsInjectedVariant() throws IOException {
+        TemplatePool pool = TemplatePoolTest.buildPool();
+        PooledVcfSimulator simulator = new PooledVcfSimulator(pool, 1, ScratchDirectory.getDefault());
+        Phenopacket packet = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny"));
+
+        Path path = simulator.simulateVcfWithPhenopacket(packet);
+
+        try (VCFFileReader reader = new VCFFileReader(path, false)) {
+            assertThat(reader.getFileHeader().getGenotypeSamples().get(0), is("Johnny"));
+            VariantContextComparator comparator = new VariantContextComparator(reader.getFileHeader().getContigLines());
+            List<VariantContext> variants = reader.iterator().toList();
+            List<VariantContext> sorted = new ArrayList<>(variants);
+            sorted.sort(comparator);
+            assertThat(variants, is(sorted));
+            assertThat(variants.size(), is(pool.getRecordCount(simulator.chooseTemplate("Johnny")) + 1));
+            assertThat(variants.stream().anyMatch(vc -> vc.getStart() == 787400 && vc.getGenotype("Johnny").isHet()), is(true));
+        }
+    }
+}
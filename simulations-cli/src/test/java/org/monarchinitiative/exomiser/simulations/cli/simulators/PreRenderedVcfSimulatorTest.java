@@ -0,0 +1,71 @@
+package org.monarchinitiative.exomiser.simulations.cli.simulators;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.monarchinitiative.exomiser.simulations.cli.TestExamples;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.core.VcfAllele;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.monarchinitiative.exomiser.simulations.cli.TestExamples.hetVariant;
+import static org.monarchinitiative.exomiser.simulations.cli.TestExamples.individual;
+
+class PreRenderedVcfSimulatorTest {
+
+    private static Path getTemplatePath(String templateName) {
+        return Paths.get(PreRenderedVcfSimulatorTest.class.getResource(templateName).getFile());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"GIAB_NIST7035_3vars.vcf", "GIAB_NIST7035.vcf"})
+    void outputIsTheSameAsOutputOfSingleVcfSimulator(String templateName) throws Exception {
+        Path templatePath = getTemplatePath(templateName);
+        Phenopacket packet = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny Bravo"));
+
+        Path expected = new SingleVcfSimulator(templatePath).simulateVcfWithPhenopacket(packet);
+        Path actual = PreRenderedVcfSimulator.prerender(templatePath).simulateVcfWithPhenopacket(packet);
+
+        assertThat(Files.readAllLines(actual), is(Files.readAllLines(expected)));
+    }
+
+    @Test
+    void variantsAreInjectedAtTheBeginningAndAtTheEndOfTemplate() throws Exception {
+        Path templatePath = getTemplatePath("GIAB_NIST7035_3vars.vcf");
+        Phenopacket packet = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Donna")).toBuilder()
+                .addVariants(hetVariant().toBuilder().setVcfAllele(VcfAllele.newBuilder().setChr("chr1").setPos(1).setRef("A").setAlt("G")))
+                .addVariants(hetVariant().toBuilder().setVcfAllele(VcfAllele.newBuilder().setChr("chrX").setPos(100).setRef("A").setAlt("G")))
+                .build();
+
+        Path expected = new SingleVcfSimulator(templatePath).simulateVcfWithPhenopacket(packet);
+        Path actual = PreRenderedVcfSimulator.prerender(templatePath).simulateVcfWithPhenopacket(packet);
+
+        List<String> lines = Files.readAllLines(actual);
+        assertThat(lines, is(Files.readAllLines(expected)));
+        assertThat(lines, hasItem("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tDonna"));
+        assertThat(lines.get(lines.size() - 1).startsWith("chrX\t100\t"), is(true));
+    }
+
+    @Test
+    void unsortedTemplateIsSortedExternally() throws Exception {
+        // the records of the test template are not sorted
+        Path templatePath = getTemplatePath("GIAB_NIST7035.vcf");
+        Phenopacket packet = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny"));
+
+        Path expected = new SingleVcfSimulator(templatePath).simulateVcfWithPhenopacket(packet);
+        try (ScratchDirectory scratchDirectory = ScratchDirectory.create(Files.createTempDirectory("pre-rendered-vcf-simulator-test"))) {
+            Path actual = PreRenderedVcfSimulator.prerender(templatePath, scratchDirectory, 7).simulateVcfWithPhenopacket(packet);
+
+            assertThat(Files.readAllLines(actual), is(Files.readAllLines(expected)));
+            // the body file and the simulated VCF file
+            assertThat(Files.list(scratchDirectory.getDirectory()).count(), is(2L));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.monarchinitiative.exomiser.simulations.cli.simulators;
+
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFFileReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class RegionSetTest {
+
+    /**
+     * Sort the template into a temporary directory and index it.
+     */
+    static Path makeIndexedTemplate(String templateName) throws IOException {
+        Path template = Paths.get(RegionSetTest.class.getResource(templateName).getFile());
+        Path directory = Files.createTempDirectory("region-set-test");
+        Path sorted = directory.resolve(templateName);
+        SingleVcfSimulator.sortExternally(template, sorted, 1000, directory);
+        IndexFactory.createDynamicIndex(sorted.toFile(), new VCFCodec()).writeBasedOnFeatureFile(sorted.toFile());
+        return sorted;
+    }
+
+    private static VariantContext variant(String contig, int start, int end) {
+        char[] ref = new char[end - start + 1];
+        Arrays.fill(ref, 'A');
+        return new VariantContextBuilder()
+                .chr(contig).start(start).stop(end)
+                .alleles(new String(ref), "C")
+                .genotypes(Collections.emptyList())
+                .make();
+    }
+
+    private static List<String> positions(Iterator<VariantContext> records) {
+        List<String> positions = new ArrayList<>();
+        records.forEachRemaining(vc -> positions.add(vc.getContig() + ":" + vc.getStart()));
+        return positions;
+    }
+
+    @Test
+    void overlappingAndAdjacentRegionsAreMerged() {
+        RegionSet regions = RegionSet.of(Arrays.asList(
+                new GenomicRegion("chr1", 500, 600, "C"),
+                new GenomicRegion("chr1", 100, 200, "A"),
+                new GenomicRegion("chr1", 150, 300, "A"),
+                new GenomicRegion("chr1", 301, 400, "B"),
+                new GenomicRegion("chr2", 10, 20, "D")), 0);
+
+        assertThat(regions.size(), is(3));
+        assertThat(regions.toString(), is("chr1:100-400,chr1:500-600,chr2:10-20"));
+    }
+
+    @Test
+    void flankIsAddedOnBothSides() {
+        RegionSet regions = RegionSet.of(Arrays.asList(
+                new GenomicRegion("chr1", 50, 60, "A"),
+                new GenomicRegion("chr1", 300, 400, "B")), 100);
+
+        // the first region starts at the first base of the contig, the regions overlap after adding the flank
+        assertThat(regions.toString(), is("chr1:1-160,chr1:200-500"));
+    }
+
+    @Test
+    void variantOverlappingRegionIsRecognized() {
+        RegionSet regions = RegionSet.of(Arrays.asList(
+                new GenomicRegion("chr1", 100, 200, "A"),
+                new GenomicRegion("chr1", 300, 400, "B")), 0);
+
+        assertThat(regions.overlaps(variant("chr1", 100, 100)), is(true));
+        assertThat(regions.overlaps(variant("chr1", 95, 105)), is(true));
+        assertThat(regions.overlaps(variant("chr1", 200, 200)), is(true));
+        assertThat(regions.overlaps(variant("chr1", 250, 250)), is(false));
+        assertThat(regions.overlaps(variant("chr1", 150, 350)), is(true));
+        assertThat(regions.overlaps(variant("chr1", 99, 99)), is(false));
+        assertThat(regions.overlaps(variant("chr2", 150, 150)), is(false));
+    }
+
+    @Test
+    void bedFileIsReadWithOneBasedCoordinates() throws IOException {
+        Path bed = Files.createTempFile("region-set-test", ".bed");
+        Files.write(bed, Arrays.asList(
+                "track name=panel",
+                "# comment",
+                "chr1\t99\t200\tGCK",
+                "chr2\t0\t10"));
+
+        List<GenomicRegion> regions = GenomicRegion.readBedFile(bed);
+
+        assertThat(regions, is(Arrays.asList(
+                new GenomicRegion("chr1", 100, 200, "GCK"),
+                new GenomicRegion("chr2", 1, 10, ""))));
+    }
+
+    @Test
+    void indexedQueryReturnsTheSameRecordsAsFilter() throws IOException {
+        Path template = makeIndexedTemplate("GIAB_NIST7035.vcf");
+        RegionSet regions = RegionSet.of(Arrays.asList(
+                new GenomicRegion("chr1", 14600, 14700, "A"),
+                new GenomicRegion("chr1", 91200, 91500, "B"),
+                // the 2 bp deletion at chrM:16183 overlaps the region
+                new GenomicRegion("chrM", 16184, 16200, "C"),
+                new GenomicRegion("chrUn", 1, 1000, "D")), 0);
+
+        List<String> queried;
+        try (VCFFileReader reader = new VCFFileReader(template, true)) {
+            queried = positions(regions.query(reader));
+        }
+        List<String> filtered;
+        try (VCFFileReader reader = new VCFFileReader(template, false)) {
+            filtered = positions(regions.filter(reader.iterator()));
+        }
+
+        assertThat(queried, is(filtered));
+        assertThat(queried.subList(0, 4), is(Arrays.asList("chr1:14653", "chr1:14673", "chr1:14677", "chr1:14699")));
+        assertThat(queried.contains("chrM:16183"), is(true));
+    }
+}
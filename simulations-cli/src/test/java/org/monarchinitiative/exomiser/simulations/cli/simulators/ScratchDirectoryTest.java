@@ -0,0 +1,109 @@
+package org.monarchinitiative.exomiser.simulations.cli.simulators;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.monarchinitiative.exomiser.simulations.cli.TestExamples;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.monarchinitiative.exomiser.simulations.cli.TestExamples.hetVariant;
+import static org.monarchinitiative.exomiser.simulations.cli.TestExamples.individual;
+
+class ScratchDirectoryTest {
+
+    private Path parent;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        parent = Files.createTempDirectory("scratch-directory-test");
+    }
+
+    @Test
+    void releasedFileIsDeleted() throws IOException {
+        try (ScratchDirectory instance = ScratchDirectory.create(parent)) {
+            Path path = instance.createFile("case-", ".vcf");
+            assertThat(path.getParent(), is(instance.getDirectory()));
+
+            instance.release(path);
+
+            assertThat(Files.exists(path), is(false));
+        }
+    }
+
+    @Test
+    void pathsOutsideOfDirectoryAreNotReleased() throws IOException {
+        Path outside = Files.createTempFile(parent, "cached-", ".vcf");
+        try (ScratchDirectory instance = ScratchDirectory.create(parent)) {
+            instance.release(outside);
+        }
+        assertThat(Files.exists(outside), is(true));
+    }
+
+    @Test
+    void peakUsageIsTracked() throws IOException {
+        try (ScratchDirectory instance = ScratchDirectory.create(parent)) {
+            Path first = instance.createFile("first-", ".vcf");
+            Files.write(first, new byte[100]);
+            instance.written(first);
+            Path second = instance.createFile("second-", ".vcf");
+            Files.write(second, new byte[50]);
+            instance.written(second);
+            instance.release(first);
+            instance.release(second);
+            Path third = instance.createFile("third-", ".vcf");
+            Files.write(third, new byte[120]);
+            instance.written(third);
+
+            assertThat(instance.getPeakUsage(), is(150L));
+        }
+    }
+
+    @Test
+    void rewrittenFileIsCountedOnce() throws IOException {
+        try (ScratchDirectory instance = ScratchDirectory.create(parent)) {
+            Path path = instance.createFile("case-", ".vcf");
+            Files.write(path, new byte[100]);
+            instance.written(path);
+            Files.write(path, new byte[40]);
+            instance.written(path);
+            Path other = instance.createFile("other-", ".vcf");
+            Files.write(other, new byte[80]);
+            instance.written(other);
+
+            assertThat(instance.getPeakUsage(), is(120L));
+        }
+    }
+
+    @Test
+    void simulatedFileIsCounted() throws IOException {
+        try (ScratchDirectory instance = ScratchDirectory.create(parent)) {
+            SingleVcfSimulator simulator = SingleVcfSimulator.builder()
+                    .setTemplateVcfPath(Paths.get(getClass().getResource("GIAB_NIST7035_3vars.vcf").getFile()))
+                    .setScratchDirectory(instance)
+                    .build();
+            Path vcf = simulator.simulateVcfWithPhenopacket(TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny")));
+
+            assertThat(instance.getPeakUsage(), is(Files.size(vcf)));
+        }
+    }
+
+    @Test
+    void directoryIsDeletedWhenClosed() throws IOException {
+        ScratchDirectory instance = ScratchDirectory.create(parent);
+        SingleVcfSimulator simulator = SingleVcfSimulator.builder()
+                .setTemplateVcfPath(Paths.get(getClass().getResource("GIAB_NIST7035_3vars.vcf").getFile()))
+                .setScratchDirectory(instance)
+                .build();
+        Path vcf = simulator.simulateVcfWithPhenopacket(TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny")));
+        assertThat(vcf.getParent(), is(instance.getDirectory()));
+
+        instance.close();
+
+        assertThat(Files.exists(instance.getDirectory()), is(false));
+    }
+}
@@ -1,6 +1,13 @@
 package org.monarchinitiative.exomiser.simulations.cli.simulators;
 
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.tribble.Tribble;
 import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.variantcontext.VariantContextComparator;
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
 import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFHeader;
 import org.junit.jupiter.api.BeforeEach;
@@ -13,13 +20,21 @@ import org.phenopackets.schema.v1.Phenopacket;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.monarchinitiative.exomiser.simulations.cli.TestExamples.hetVariant;
@@ -29,6 +44,11 @@ class SingleVcfSimulatorTest {
 
     private static final Path TEST_VCF_PATH = Paths.get(SingleVcfSimulatorTest.class.getResource("GIAB_NIST7035_3vars.vcf").getFile());
 
+    /**
+     * This VCF file is not sorted, <code>chrM</code> variants are at the beginning.
+     */
+    private static final Path UNSORTED_VCF_PATH = Paths.get(SingleVcfSimulatorTest.class.getResource("GIAB_NIST7035.vcf").getFile());
+
     private SingleVcfSimulator instance;
 
 
@@ -75,4 +95,236 @@ class SingleVcfSimulatorTest {
         assertThat(updatedNames.size(), is(1));
         assertThat(updatedNames, hasItem(sampleName));
     }
-}
\ No newline at end of file
+
+    @Test
+    void sortedTemplateIsRecognized() {
+        assertThat(SingleVcfSimulator.isSorted(TEST_VCF_PATH), is(true));
+        assertThat(SingleVcfSimulator.isSorted(UNSORTED_VCF_PATH), is(false));
+    }
+
+    @Test
+    void unsortedTemplateIsSortedExternally() throws IOException {
+        Path sorted = Files.createTempFile("sorted-template-", ".vcf");
+        sorted.toFile().deleteOnExit();
+
+        // 128 records are spilled in runs of 10 records
+        int cnt = SingleVcfSimulator.sortExternally(UNSORTED_VCF_PATH, sorted, 10, sorted.getParent());
+
+        assertThat(cnt, is(128));
+        assertThat(SingleVcfSimulator.isSorted(sorted), is(true));
+        try (VCFFileReader reader = new VCFFileReader(sorted, false)) {
+            assertThat(reader.iterator().stream().map(VariantContext::toStringDecodeGenotypes).collect(Collectors.toList()),
+                    is(VcfTemplate.load(UNSORTED_VCF_PATH).getVariants().stream().map(VariantContext::toStringDecodeGenotypes).collect(Collectors.toList())));
+        }
+    }
+
+    @Test
+    void simulationWithSmallSortingBudgetIsTheSame() throws IOException {
+        Phenopacket packet = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny"));
+        SingleVcfSimulator smallBudget = SingleVcfSimulator.builder()
+                .setTemplateVcfPath(UNSORTED_VCF_PATH)
+                .setMaxRecordsInRam(7)
+                .build();
+
+        Path actual = smallBudget.simulateVcfWithPhenopacket(packet);
+        Path expected = new InMemoryVcfSimulator(VcfTemplate.load(UNSORTED_VCF_PATH)).simulateVcfWithPhenopacket(packet);
+
+        assertThat(Files.readAllLines(actual), is(Files.readAllLines(expected)));
+    }
+
+    @Test
+    void injectedVariantsAreMergedAfterTemplateVariantsAtTheSamePosition() {
+        VariantContextComparator comparator = new VariantContextComparator(Arrays.asList("chr1", "chr2"));
+        List<VariantContext> template = Arrays.asList(variant("chr1", 10, "t1"), variant("chr1", 20, "t2"), variant("chr2", 5, "t3"));
+        List<VariantContext> injected = Arrays.asList(variant("chr1", 1, "i1"), variant("chr1", 20, "i2"), variant("chr2", 10, "i3"));
+
+        List<String> merged = new ArrayList<>();
+        int cnt = SingleVcfSimulator.mergeSorted(template.iterator(), injected, comparator, vc -> merged.add(vc.getID()));
+
+        assertThat(cnt, is(6));
+        assertThat(merged, is(Arrays.asList("i1", "t1", "t2", "i2", "t3", "i3")));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"GIAB_NIST7035_3vars.vcf", "GIAB_NIST7035.vcf"})
+    void simulatedVcfIsSorted(String templateName) throws IOException {
+        Path templatePath = Paths.get(getClass().getResource(templateName).getFile());
+        Phenopacket packet = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("ID"));
+
+        Path path = new SingleVcfSimulator(templatePath).simulateVcfWithPhenopacket(packet);
+
+        try (VCFFileReader reader = new VCFFileReader(path.toFile(), false)) {
+            VariantContextComparator comparator = new VariantContextComparator(reader.getFileHeader().getContigLines());
+            List<VariantContext> variants = reader.iterator().toList();
+            List<VariantContext> sorted = new ArrayList<>(variants);
+            sorted.sort(comparator);
+            assertThat(variants.stream().map(VariantContext::toStringDecodeGenotypes).collect(Collectors.toList()),
+                    is(sorted.stream().map(VariantContext::toStringDecodeGenotypes).collect(Collectors.toList())));
+            assertTrue(variants.stream().anyMatch(vc -> vc.getStart() == 787400));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"GIAB_NIST7035_3vars.vcf", "GIAB_NIST7035.vcf"})
+    void batchOfVcfsIsTheSameAsVcfsSimulatedOneByOne(String templateName) throws IOException {
+        SingleVcfSimulator simulator = new SingleVcfSimulator(Paths.get(getClass().getResource(templateName).getFile()));
+        List<Phenopacket> packets = Arrays.asList(
+                TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny")),
+                TestExamples.makePhenopacketWithHetVariant(hetVariant().toBuilder()
+                        .setVcfAllele(hetVariant().getVcfAllele().toBuilder().setChr("chr1").setPos(1)).build(), individual("Donna")),
+                TestExamples.makePhenopacketWithHetVariant(hetVariant().toBuilder()
+                        .setVcfAllele(hetVariant().getVcfAllele().toBuilder().setChr("chrX").setPos(100)).build(), individual("Bravo")));
+
+        List<Path> batch = simulator.simulateVcfsWithPhenopackets(packets);
+
+        assertThat(batch.size(), is(packets.size()));
+        for (int i = 0; i < packets.size(); i++) {
+            Path single = simulator.simulateVcfWithPhenopacket(packets.get(i));
+            assertThat(Files.readAllLines(batch.get(i)), is(Files.readAllLines(single)));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"GIAB_NIST7035_3vars.vcf", "GIAB_NIST7035.vcf"})
+    void compressedVcfIsIndexedAndContainsTheSameVariants(String templateName) throws IOException {
+        Path templatePath = Paths.get(getClass().getResource(templateName).getFile());
+        Phenopacket packet = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny"));
+        SingleVcfSimulator compressing = SingleVcfSimulator.builder()
+                .setTemplateVcfPath(templatePath)
+                .setCompressOutput(true)
+                .build();
+
+        Path compressed = compressing.simulateVcfWithPhenopacket(packet);
+        Path uncompressed = new SingleVcfSimulator(templatePath).simulateVcfWithPhenopacket(packet);
+
+        assertThat(compressed.toString().endsWith(".vcf.gz"), is(true));
+        assertThat(IOUtil.isBlockCompressed(compressed), is(true));
+        assertThat(Tribble.tabixIndexFile(compressed.toFile()).isFile(), is(true));
+        try (VCFFileReader reader = new VCFFileReader(compressed, true);
+             VCFFileReader expected = new VCFFileReader(uncompressed, false)) {
+            assertThat(reader.iterator().stream().map(VariantContext::toStringDecodeGenotypes).collect(Collectors.toList()),
+                    is(expected.iterator().stream().map(VariantContext::toStringDecodeGenotypes).collect(Collectors.toList())));
+            assertThat(reader.query("chr1", 787400, 787400).stream().count(), is(1L));
+        }
+    }
+
+    @Test
+    void simulationIsRestrictedToRegionsWithAndWithoutIndex() throws IOException {
+        RegionSet regions = RegionSet.of(Arrays.asList(
+                new GenomicRegion("chr1", 14600, 14700, "A"),
+                new GenomicRegion("chrM", 16180, 16200, "B")), 10);
+        Phenopacket packet = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny"));
+        SingleVcfSimulator indexed = SingleVcfSimulator.builder()
+                .setTemplateVcfPath(RegionSetTest.makeIndexedTemplate("GIAB_NIST7035.vcf"))
+                .setRegions(regions)
+                .build();
+        SingleVcfSimulator scanned = SingleVcfSimulator.builder()
+                .setTemplateVcfPath(UNSORTED_VCF_PATH)
+                .setRegions(regions)
+                .build();
+
+        List<String> indexedRecords = records(indexed.simulateVcfWithPhenopacket(packet));
+        List<String> scannedRecords = records(scanned.simulateVcfWithPhenopacket(packet));
+
+        assertThat(indexedRecords, is(scannedRecords));
+        List<String> positions = indexedRecords.stream()
+                .map(line -> line.split("\t")[0] + ":" + line.split("\t")[1])
+                .collect(Collectors.toList());
+        // the injected variant at chr1:787400 lies outside of the regions
+        assertThat(positions.contains("chr1:787400"), is(true));
+        assertThat(positions.contains("chr1:14653"), is(true));
+        assertThat(positions.contains("chr1:14907"), is(false));
+        assertTrue(positions.stream().anyMatch(position -> position.startsWith("chrM:")));
+    }
+
+    @Test
+    void batchRestrictedToRegionsIsTheSameAsVcfsSimulatedOneByOne() throws IOException {
+        SingleVcfSimulator simulator = SingleVcfSimulator.builder()
+                .setTemplateVcfPath(RegionSetTest.makeIndexedTemplate("GIAB_NIST7035.vcf"))
+                .setRegions(RegionSet.of(Collections.singletonList(new GenomicRegion("chr1", 91000, 92000, "A")), 0))
+                .build();
+        List<Phenopacket> packets = Arrays.asList(
+                TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny")),
+                TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Donna")));
+
+        List<Path> batch = simulator.simulateVcfsWithPhenopackets(packets);
+
+        for (int i = 0; i < packets.size(); i++) {
+            assertThat(Files.readAllLines(batch.get(i)), is(Files.readAllLines(simulator.simulateVcfWithPhenopacket(packets.get(i)))));
+        }
+    }
+
+    private static List<String> records(Path vcfPath) throws IOException {
+        return Files.readAllLines(vcfPath).stream()
+                .filter(line -> !line.startsWith("#"))
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    void recordsOfSingleSampleTemplateAreNotRebuilt() {
+        try (VCFFileReader reader = new VCFFileReader(TEST_VCF_PATH, false)) {
+            UnaryOperator<VariantContext> renamer = SingleVcfSimulator.sampleRenamer(reader.getFileHeader(), "Johnny");
+            for (VariantContext vc : reader) {
+                assertThat(renamer.apply(vc), is(sameInstance(vc)));
+            }
+        }
+    }
+
+    /**
+     * Compare allocation of writing the template with genotypes renamed per record and with the sample renamed only
+     * in the header. Run with <code>-Dexome.template=/path/to/exome.vcf</code> to use e.g. a full exome template
+     * instead of the test template.
+     */
+    @Test
+    void renamingSampleInHeaderAllocatesLessThanRenamingGenotypes() {
+        String exomeTemplate = System.getProperty("exome.template");
+        // the order of the records does not matter here
+        Path templatePath = exomeTemplate == null ? UNSORTED_VCF_PATH : Paths.get(exomeTemplate);
+        // warm up
+        allocatedBytes(templatePath, SingleVcfSimulator.changeSampleNameInGenotypes("Johnny"));
+        allocatedBytes(templatePath, UnaryOperator.identity());
+
+        long genotypes = allocatedBytes(templatePath, SingleVcfSimulator.changeSampleNameInGenotypes("Johnny"));
+        long header = allocatedBytes(templatePath, UnaryOperator.identity());
+
+        assertTrue(header < genotypes, String.format("Renaming genotypes: %,d B, renaming header only: %,d B (%.1f%%)",
+                genotypes, header, 100. * header / genotypes));
+    }
+
+    private static long allocatedBytes(Path templatePath, UnaryOperator<VariantContext> renamer) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(threadId);
+        try (VCFFileReader reader = new VCFFileReader(templatePath, false);
+             VariantContextWriter writer = new VariantContextWriterBuilder()
+                     .setOutputVCFStream(new OutputStream() {
+                         @Override
+                         public void write(int b) {
+                             // discard
+                         }
+
+                         @Override
+                         public void write(byte[] b, int off, int len) {
+                             // discard
+                         }
+                     })
+                     .setOption(Options.ALLOW_MISSING_FIELDS_IN_HEADER)
+                     .unsetOption(Options.INDEX_ON_THE_FLY)
+                     .build()) {
+            writer.writeHeader(SingleVcfSimulator.updateHeaderWithPhenopacketSample(reader.getFileHeader(), "Johnny"));
+            for (VariantContext vc : reader) {
+                writer.add(renamer.apply(vc));
+            }
+        }
+        return bean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    private static VariantContext variant(String contig, int pos, String id) {
+        return new VariantContextBuilder()
+                .chr(contig).start(pos).stop(pos)
+                .alleles("A", "C")
+                .id(id)
+                .genotypes(Collections.emptyList())
+                .make();
+    }
+}
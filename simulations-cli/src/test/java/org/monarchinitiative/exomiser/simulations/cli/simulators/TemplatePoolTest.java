@@ -0,0 +1,96 @@
+package org.monarchinitiative.exomiser.simulations.cli.simulators;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TemplatePoolTest {
+
+    private static final Path SMALL_VCF_PATH = Paths.get(TemplatePoolTest.class.getResource("GIAB_NIST7035_3vars.vcf").getFile());
+
+    private static final Path UNSORTED_VCF_PATH = Paths.get(TemplatePoolTest.class.getResource("GIAB_NIST7035.vcf").getFile());
+
+    static TemplatePool buildPool() throws IOException {
+        Path poolPath = Files.createTempDirectory("template-pool-test").resolve("templates.pool");
+        return TemplatePool.build(Arrays.asList(SMALL_VCF_PATH, UNSORTED_VCF_PATH), poolPath);
+    }
+
+    /**
+     * @return CHROM, POS, REF, ALT, QUAL, FILTER and GT columns of the VCF line
+     */
+    private static String packedColumns(String line) {
+        String[] tokens = line.split("\t");
+        return String.join("\t", tokens[0], tokens[1], tokens[3], tokens[4], tokens[5], tokens[6], tokens[9].split(":")[0]);
+    }
+
+    @Test
+    void poolIsBuiltAndReopened() throws IOException {
+        Path poolPath = Files.createTempDirectory("template-pool-test").resolve("templates.pool");
+        TemplatePool.build(Arrays.asList(SMALL_VCF_PATH, UNSORTED_VCF_PATH), poolPath);
+
+        TemplatePool pool = TemplatePool.open(poolPath);
+
+        assertThat(pool.size(), is(2));
+        assertThat(pool.getTemplateName(0), is("GIAB_NIST7035_3vars.vcf"));
+        assertThat(pool.getTemplateName(1), is("GIAB_NIST7035.vcf"));
+        assertThat(pool.getRecordCount(0), is(3));
+        assertThat(pool.getRecordCount(1), is(128));
+        assertThat(Files.size(poolPath) < Files.size(UNSORTED_VCF_PATH), is(true));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1})
+    void packedRecordsAreSortedAndKeepTheAnalysedFields(int template) throws IOException {
+        TemplatePool pool = buildPool();
+        Path templatePath = template == 0 ? SMALL_VCF_PATH : UNSORTED_VCF_PATH;
+        Path sorted = Files.createTempDirectory("template-pool-test").resolve("sorted.vcf");
+        SingleVcfSimulator.sortExternally(templatePath, sorted, 1000, sorted.getParent());
+
+        ByteBuffer records = pool.getRecords(template);
+        List<String> unpacked = new ArrayList<>();
+        for (int i = 0; i < pool.getRecordCount(template); i++) {
+            StringBuilder sb = new StringBuilder();
+            pool.appendRecord(records, i, sb);
+            unpacked.add(packedColumns(sb.toString()));
+        }
+
+        List<String> expected = Files.readAllLines(sorted).stream()
+                .filter(line -> !line.startsWith("#"))
+                .map(TemplatePoolTest::packedColumns)
+                .collect(Collectors.toList());
+        assertThat(unpacked, is(expected));
+    }
+
+    @Test
+    void polyploidGenotypeIsRejected() throws IOException {
+        Path directory = Files.createTempDirectory("template-pool-test");
+        Path triploid = directory.resolve("triploid.vcf");
+        Files.copy(SMALL_VCF_PATH, triploid);
+        Files.write(triploid, "chr2\t100\t.\tA\tG\t50\t.\t.\tGT\t0/1/1\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> TemplatePool.build(Arrays.asList(SMALL_VCF_PATH, triploid), directory.resolve("templates.pool")));
+        assertThat(e.getMessage(), is("Unable to pack genotype A/G/G of variant at chr2:100, at most diploid genotypes are supported"));
+    }
+
+    @Test
+    void fileWhichIsNotPoolIsRejected() {
+        assertThrows(IOException.class, () -> TemplatePool.open(SMALL_VCF_PATH));
+    }
+}
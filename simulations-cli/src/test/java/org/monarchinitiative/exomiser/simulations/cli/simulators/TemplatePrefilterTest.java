@@ -0,0 +1,126 @@
+package org.monarchinitiative.exomiser.simulations.cli.simulators;
+
+import htsjdk.tribble.Tribble;
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFFileReader;
+import org.junit.jupiter.api.Test;
+import org.monarchinitiative.exomiser.simulations.cli.TestExamples;
+import org.phenopackets.schema.v1.Phenopacket;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.monarchinitiative.exomiser.simulations.cli.TestExamples.hetVariant;
+import static org.monarchinitiative.exomiser.simulations.cli.TestExamples.individual;
+
+class TemplatePrefilterTest {
+
+    private static final TemplatePrefilter PREFILTER = new TemplatePrefilter(200, true);
+
+    /**
+     * Copy the template into a temporary directory, the reduced template is written next to it.
+     */
+    private static Path copyTemplate(String templateName) throws IOException {
+        Path template = Paths.get(TemplatePrefilterTest.class.getResource(templateName).getFile());
+        return Files.copy(template, Files.createTempDirectory("template-prefilter-test").resolve(templateName));
+    }
+
+    private static List<String> positions(Path vcfPath) {
+        List<String> positions = new ArrayList<>();
+        try (VCFFileReader reader = new VCFFileReader(vcfPath, false)) {
+            for (VariantContext vc : reader) {
+                positions.add(vc.getContig() + ":" + vc.getStart());
+            }
+        }
+        return positions;
+    }
+
+    @Test
+    void recordsWithLowOrMissingQualityAndFailedRecordsAreRemoved() throws IOException {
+        Path template = Files.createTempDirectory("template-prefilter-test").resolve("template.vcf");
+        Files.write(template, Arrays.asList(
+                "##fileformat=VCFv4.2",
+                "##FILTER=<ID=LowQual,Description=\"Low quality\">",
+                "##contig=<ID=chr1,length=249250621>",
+                "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO",
+                "chr1\t100\t.\tA\tC\t250\tPASS\t.",
+                "chr1\t200\t.\tA\tC\t150\tPASS\t.",
+                "chr1\t300\t.\tA\tC\t.\t.\t.",
+                "chr1\t400\t.\tA\tC\t500\tLowQual\t.",
+                "chr1\t500\t.\tA\tC\t200\t.\t."));
+
+        Path prefiltered = PREFILTER.write(template);
+
+        assertThat(prefiltered, is(template.resolveSibling("template.prefiltered.vcf")));
+        assertThat(positions(prefiltered), is(Arrays.asList("chr1:100", "chr1:500")));
+        assertThat(positions(new TemplatePrefilter(200, false).write(template)), is(Arrays.asList("chr1:100", "chr1:400", "chr1:500")));
+    }
+
+    @Test
+    void reducedTemplateIsUsedWhenTheConfigurationMatches() throws IOException {
+        Path template = copyTemplate("GIAB_NIST7035.vcf");
+        assertThat(PREFILTER.resolve(template), is(template));
+
+        Path prefiltered = PREFILTER.write(template);
+
+        assertThat(positions(prefiltered).size(), is(96));
+        assertThat(PREFILTER.resolve(template), is(prefiltered));
+        assertThat(new TemplatePrefilter(100, true).resolve(template), is(template));
+
+        // the content of the template has changed since the reduced template was created, the size and the
+        // modification time have not
+        FileTime modified = Files.getLastModifiedTime(template);
+        String content = new String(Files.readAllBytes(template), StandardCharsets.UTF_8);
+        Files.write(template, content.replace("\t787205\t", "\t787206\t").getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(template, modified);
+        assertThat(PREFILTER.resolve(template), is(template));
+    }
+
+    @Test
+    void indexOfPreviousReducedTemplateIsNotKept() throws IOException {
+        Path template = copyTemplate("GIAB_NIST7035_3vars.vcf");
+        IndexFactory.createDynamicIndex(template.toFile(), new VCFCodec()).writeBasedOnFeatureFile(template.toFile());
+        Path index = Tribble.indexFile(PREFILTER.write(template).toFile()).toPath();
+        assertThat(Files.exists(index), is(true));
+
+        // the template is not indexed anymore
+        Files.delete(Tribble.indexFile(template.toFile()).toPath());
+        PREFILTER.write(template);
+
+        assertThat(Files.exists(index), is(false));
+    }
+
+    @Test
+    void staleIndexIsReplaced() throws IOException {
+        Path template = copyTemplate("GIAB_NIST7035_3vars.vcf");
+        IndexFactory.createDynamicIndex(template.toFile(), new VCFCodec()).writeBasedOnFeatureFile(template.toFile());
+        Path prefiltered = PREFILTER.write(template);
+        Path index = Tribble.indexFile(prefiltered.toFile()).toPath();
+        Files.setLastModifiedTime(index, FileTime.fromMillis(Files.getLastModifiedTime(prefiltered).toMillis() - 1000));
+
+        assertThat(PREFILTER.resolve(template), is(prefiltered));
+
+        assertThat(Files.getLastModifiedTime(index).compareTo(Files.getLastModifiedTime(prefiltered)) >= 0, is(true));
+    }
+
+    @Test
+    void injectedVariantsAreKeptInSimulationOnReducedTemplate() throws Exception {
+        Path template = copyTemplate("GIAB_NIST7035_3vars.vcf");
+        Phenopacket packet = TestExamples.makePhenopacketWithHetVariant(hetVariant(), individual("Johnny Bravo"));
+
+        Path simulated = new SingleVcfSimulator(PREFILTER.write(template)).simulateVcfWithPhenopacket(packet);
+
+        assertThat(positions(simulated).contains("chr1:787400"), is(true));
+    }
+}